@@ -0,0 +1,69 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler;
+
+import com.google.common.collect.Table;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Counting names into chains and turning chains into probability tables.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChainBenchmark {
+
+	@Param({IdentifierCorpus.SMALL, IdentifierCorpus.ENTERPRISE, IdentifierCorpus.JDK})
+	public String corpus;
+
+	private IdentifierCorpus      identifiers;
+	private MarkovBuildingVisitor chains;
+	private MarkovBuildingVisitor empty = new MarkovBuildingVisitor();
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		identifiers = IdentifierCorpus.load(corpus);
+		chains = identifiers.buildChains();
+	}
+
+	// every name of the corpus, so score is corpora per second
+	@Benchmark
+	public MarkovBuildingVisitor processNames() {
+		return identifiers.buildChains();
+	}
+
+	@Benchmark
+	public void probabilityTables(Blackhole blackhole) {
+		// merging nothing drops tables cached by previous invocation
+		chains.merge(empty);
+		Table<String, String, Double> variables = chains.getVariableTable();
+		Table<String, String, Double> classes = chains.getClassTable();
+		Table<String, String, Double> methods = chains.getMethodTable();
+		blackhole.consume(variables);
+		blackhole.consume(classes);
+		blackhole.consume(methods);
+	}
+}
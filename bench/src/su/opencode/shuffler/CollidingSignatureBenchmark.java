@@ -0,0 +1,74 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler;
+
+import com.intellij.psi.PsiMethod;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Signature comparison of neighbouring methods of corpus classes, overloads come next to each other.
+ * Methods are PSI stubs with real names and parameter counts, so proxy calls are part of the score.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CollidingSignatureBenchmark {
+
+	@Param({IdentifierCorpus.SMALL, IdentifierCorpus.ENTERPRISE, IdentifierCorpus.JDK})
+	public String corpus;
+
+	private PsiMethod[] methods;
+	private int         next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		IdentifierCorpus identifiers = IdentifierCorpus.load(corpus);
+		List<String> names = identifiers.getMethodNames();
+		List<Integer> arities = identifiers.getMethodArities();
+		methods = new PsiMethod[names.size()];
+		for (int i = 0; i < methods.length; i++) {
+			methods[i] = PsiStubs.method(names.get(i), arities.get(i));
+		}
+	}
+
+	private int next() {
+		if (++next >= methods.length - 1) next = 0;
+		return next;
+	}
+
+	@Benchmark
+	public boolean byName() {
+		int i = next();
+		return ShuffleAction.isCollidingSignature(methods[i], methods[i + 1], false);
+	}
+
+	// as checked for a new name, every pair is compared by parameters
+	@Benchmark
+	public boolean ignoringName() {
+		int i = next();
+		return ShuffleAction.isCollidingSignature(methods[i], methods[i + 1], true);
+	}
+}
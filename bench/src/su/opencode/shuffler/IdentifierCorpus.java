@@ -0,0 +1,215 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.CodeSource;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/*
+ * Real identifiers for benchmarks, harvested by reflection from classes on the benchmark classpath:
+ * small is the plugin itself, enterprise is the IDE platform, jdk is the public part of the JDK.
+ * Classes are not initialized, those that fail to link are skipped.
+ */
+public class IdentifierCorpus {
+
+	public static final String SMALL      = "small";
+	public static final String ENTERPRISE = "enterprise";
+	public static final String JDK        = "jdk";
+
+	private List<String> classNames     = new ArrayList<String>();
+	private List<String> qualifiedNames = new ArrayList<String>();
+	private List<String> methodNames    = new ArrayList<String>();
+	// parameter counts of methods, in the order of method names
+	private List<Integer> methodArities = new ArrayList<Integer>();
+	private List<String> variableNames  = new ArrayList<String>();
+
+	public static IdentifierCorpus load(String corpus) throws IOException {
+		List<String> classes;
+		if (SMALL.equals(corpus)) {
+			classes = classpathClasses("su/opencode/shuffler/");
+		} else if (ENTERPRISE.equals(corpus)) {
+			classes = classpathClasses("com/intellij/");
+		} else if (JDK.equals(corpus)) {
+			classes = jdkClasses();
+		} else {
+			throw new IllegalArgumentException("Unknown corpus " + corpus);
+		}
+
+		IdentifierCorpus result = new IdentifierCorpus();
+		ClassLoader loader = IdentifierCorpus.class.getClassLoader();
+		for (String className : classes) {
+			try {
+				Class<?> type = Class.forName(className, false, loader);
+				// benchmarks should not measure themselves
+				if (isBenchmarkClass(type)) continue;
+				result.add(type);
+			} catch (Throwable ex) {
+				// optional dependencies of the platform are not on the classpath
+			}
+		}
+		if (result.classNames.isEmpty()) {
+			throw new IllegalStateException("No classes of " + corpus + " corpus on classpath");
+		}
+		return result;
+	}
+
+	private static boolean isBenchmarkClass(Class<?> type) {
+		CodeSource source = type.getProtectionDomain().getCodeSource();
+		CodeSource benchmarks = IdentifierCorpus.class.getProtectionDomain().getCodeSource();
+		return source != null && benchmarks != null && source.getLocation().equals(benchmarks.getLocation());
+	}
+
+	private void add(Class<?> type) {
+		if (type.isAnonymousClass() || type.isSynthetic()) return;
+		classNames.add(type.getSimpleName());
+		qualifiedNames.add(type.getName());
+		for (Method method : type.getDeclaredMethods()) {
+			if (method.isSynthetic() || method.getName().indexOf('$') >= 0) continue;
+			methodNames.add(method.getName());
+			methodArities.add(method.getParameterTypes().length);
+		}
+		for (Field field : type.getDeclaredFields()) {
+			if (field.isSynthetic() || field.getName().indexOf('$') >= 0) continue;
+			variableNames.add(field.getName());
+		}
+	}
+
+	private static List<String> classpathClasses(String prefix) throws IOException {
+		List<String> classes = new ArrayList<String>();
+		for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+			File file = new File(entry);
+			if (file.isDirectory()) {
+				collect(file, file.getPath().length() + 1, prefix, classes);
+			} else if (file.isFile() && entry.endsWith(".jar")) {
+				JarFile jar = new JarFile(file);
+				try {
+					for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements(); ) {
+						addClass(e.nextElement().getName(), prefix, classes);
+					}
+				} finally {
+					jar.close();
+				}
+			}
+		}
+		return classes;
+	}
+
+	private static void collect(File directory, int rootLength, String prefix, List<String> classes) {
+		File[] files = directory.listFiles();
+		if (files == null) return;
+		for (File file : files) {
+			if (file.isDirectory()) {
+				collect(file, rootLength, prefix, classes);
+			} else {
+				addClass(file.getPath().substring(rootLength).replace(File.separatorChar, '/'), prefix, classes);
+			}
+		}
+	}
+
+	private static void addClass(String path, String prefix, List<String> classes) {
+		if (!path.startsWith(prefix) || !path.endsWith(".class") || path.indexOf('$') >= 0) return;
+		classes.add(path.substring(0, path.length() - ".class".length()).replace('/', '.'));
+	}
+
+	// modular JDK lists its classes in jrt file system, older ones in rt.jar
+	private static List<String> jdkClasses() throws IOException {
+		final List<String> classes = new ArrayList<String>();
+		FileSystem jrt;
+		try {
+			jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+		} catch (Exception ex) {
+			jrt = null;
+		}
+
+		if (jrt != null) {
+			final Path modules = jrt.getPath("/modules");
+			Files.walkFileTree(modules, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					// module name is the first element of the path
+					Path relative = modules.relativize(file);
+					if (relative.getNameCount() > 1) {
+						addClass(relative.subpath(1, relative.getNameCount()).toString(), "java/", classes);
+						addClass(relative.subpath(1, relative.getNameCount()).toString(), "javax/", classes);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} else {
+			for (String entry : System.getProperty("sun.boot.class.path", "").split(File.pathSeparator)) {
+				if (!entry.endsWith("rt.jar") || !new File(entry).isFile()) continue;
+				JarFile jar = new JarFile(entry);
+				try {
+					for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements(); ) {
+						String name = e.nextElement().getName();
+						addClass(name, "java/", classes);
+						addClass(name, "javax/", classes);
+					}
+				} finally {
+					jar.close();
+				}
+			}
+		}
+
+		return classes;
+	}
+
+	public List<String> getClassNames() {
+		return classNames;
+	}
+
+	public List<String> getQualifiedNames() {
+		return qualifiedNames;
+	}
+
+	public List<String> getMethodNames() {
+		return methodNames;
+	}
+
+	public List<Integer> getMethodArities() {
+		return methodArities;
+	}
+
+	public List<String> getVariableNames() {
+		return variableNames;
+	}
+
+	public MarkovBuildingVisitor buildChains() {
+		MarkovBuildingVisitor chains = new MarkovBuildingVisitor();
+		for (String name : classNames) {
+			chains.addClassName(name, 1);
+		}
+		for (String name : methodNames) {
+			chains.addMethodName(name, 1);
+		}
+		for (String name : variableNames) {
+			chains.addVariableName(name, 1);
+		}
+		return chains;
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Matching qualified names of annotations and supertypes against ignore markers.
+ * Corpus names rarely match, so a share of names under marked packages is mixed in.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IgnoreMarkerBenchmark {
+
+	private static final String[] MARKED = {
+		"javax.persistence.Entity",
+		"javax.persistence.Column",
+		"javax.xml.bind.annotation.XmlElement",
+		"org.hibernate.annotations.Type",
+		"com.fasterxml.jackson.annotation.JsonProperty",
+		"org.springframework.beans.factory.annotation.Autowired",
+	};
+
+	@Param({IdentifierCorpus.SMALL, IdentifierCorpus.ENTERPRISE, IdentifierCorpus.JDK})
+	public String corpus;
+
+	// share of names that are ignore markers
+	@Param({"0.1"})
+	public double marked;
+
+	private RenamingVisitor visitor;
+	private String[]        names;
+	private int             next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		IdentifierCorpus identifiers = IdentifierCorpus.load(corpus);
+		visitor = new RenamingVisitor(identifiers.buildChains());
+
+		List<String> mixed = new ArrayList<String>(identifiers.getQualifiedNames());
+		Random random = new Random(42);
+		int markers = (int)(mixed.size() * marked);
+		for (int i = 0; i < markers; i++) {
+			mixed.add(MARKED[random.nextInt(MARKED.length)]);
+		}
+		Collections.shuffle(mixed, random);
+		names = mixed.toArray(new String[mixed.size()]);
+	}
+
+	@Benchmark
+	public boolean isIgnoreMarker() {
+		if (++next == names.length) next = 0;
+		return visitor.isIgnoreMarker(names[next]);
+	}
+}
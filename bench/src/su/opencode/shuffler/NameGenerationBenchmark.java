@@ -0,0 +1,111 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler;
+
+import com.intellij.psi.PsiElement;
+import org.openjdk.jmh.annotations.*;
+import su.opencode.shuffler.core.NameSampler;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Sampling token lists from chains and turning them into identifiers.
+ * Inputs are sampled in setup, so conventionalizing is measured apart from sampling.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NameGenerationBenchmark {
+
+	private static final int SAMPLES = 4096;
+
+	@Param({IdentifierCorpus.SMALL, IdentifierCorpus.ENTERPRISE, IdentifierCorpus.JDK})
+	public String corpus;
+
+	private RenamingVisitor visitor;
+	private NameSampler     variableSampler;
+	private NameSampler     classSampler;
+
+	private List<String>[] samples;
+	private PsiElement[]   elements;
+	private int            next;
+
+	@Setup(Level.Trial)
+	@SuppressWarnings("unchecked")
+	public void setUp() throws IOException {
+		MarkovBuildingVisitor chains = IdentifierCorpus.load(corpus).buildChains();
+		visitor = new RenamingVisitor(chains);
+		variableSampler = chains.getVariableSampler();
+		classSampler = chains.getClassSampler();
+
+		samples = new List[SAMPLES];
+		elements = new PsiElement[SAMPLES];
+		for (int i = 0; i < SAMPLES; i++) {
+			samples[i] = visitor.generateNameList(variableSampler);
+			switch (i % 4) {
+				case 0:  elements[i] = PsiStubs.psiClass("A"); break;
+				case 1:  elements[i] = PsiStubs.method("a", 0); break;
+				case 2:  elements[i] = PsiStubs.field("a", true); break;
+				default: elements[i] = PsiStubs.field("a", false); break;
+			}
+		}
+	}
+
+	private int next() {
+		next = (next + 1) & (SAMPLES - 1);
+		return next;
+	}
+
+	@Benchmark
+	public List<String> generateVariableNameList() {
+		return visitor.generateNameList(variableSampler);
+	}
+
+	@Benchmark
+	public List<String> generateClassNameList() {
+		return visitor.generateNameList(classSampler);
+	}
+
+	@Benchmark
+	public String className() {
+		return visitor.className(samples[next()]);
+	}
+
+	@Benchmark
+	public String localName() {
+		return visitor.localName(samples[next()]);
+	}
+
+	@Benchmark
+	public String constantName() {
+		return visitor.constantName(samples[next()]);
+	}
+
+	// element kinds are mixed, so dispatch on them is measured too
+	@Benchmark
+	public String conventionalizeName() {
+		int i = next();
+		return visitor.conventionalizeName(elements[i], samples[i]);
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler;
+
+import com.intellij.psi.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/*
+ * Minimal PSI elements for benchmarks of code that only asks names, modifiers and parameters.
+ * Real PSI needs a running application, these are plain proxies answering just what is asked.
+ */
+public class PsiStubs {
+
+	public static PsiClass psiClass(String name) {
+		return stub(PsiClass.class, name, false);
+	}
+
+	public static PsiField field(String name, boolean constant) {
+		return stub(PsiField.class, name, constant);
+	}
+
+	public static PsiMethod method(String name, int parameterCount) {
+		final PsiParameter[] parameters = new PsiParameter[parameterCount];
+		for (int i = 0; i < parameterCount; i++) {
+			parameters[i] = stub(PsiParameter.class, "p" + i, false);
+		}
+		final PsiParameterList parameterList = (PsiParameterList)Proxy.newProxyInstance(
+			PsiStubs.class.getClassLoader(), new Class[]{PsiParameterList.class}, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					if ("getParametersCount".equals(method.getName())) return parameters.length;
+					if ("getParameters".equals(method.getName())) return parameters;
+					return defaultValue(proxy, method, args);
+				}
+			});
+		final PsiMethod psiMethod = stub(PsiMethod.class, name, false);
+		return (PsiMethod)Proxy.newProxyInstance(
+			PsiStubs.class.getClassLoader(), new Class[]{PsiMethod.class}, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					if ("getParameterList".equals(method.getName())) return parameterList;
+					return method.invoke(psiMethod, args);
+				}
+			});
+	}
+
+	// parameters and variables have type elements, like any declaration in source
+	private static <T> T stub(Class<T> type, final String name, final boolean constant) {
+		final PsiTypeElement typeElement = (PsiTypeElement)Proxy.newProxyInstance(
+			PsiStubs.class.getClassLoader(), new Class[]{PsiTypeElement.class}, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					return defaultValue(proxy, method, args);
+				}
+			});
+		return type.cast(Proxy.newProxyInstance(
+			PsiStubs.class.getClassLoader(), new Class[]{type}, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					String methodName = method.getName();
+					if ("getName".equals(methodName)) return name;
+					if ("hasModifierProperty".equals(methodName)) {
+						return constant && (PsiModifier.STATIC.equals(args[0]) || PsiModifier.FINAL.equals(args[0]));
+					}
+					if ("getType".equals(methodName)) return PsiType.INT;
+					if ("getTypeElement".equals(methodName)) return typeElement;
+					return defaultValue(proxy, method, args);
+				}
+			}));
+	}
+
+	private static Object defaultValue(Object proxy, Method method, Object[] args) {
+		if ("equals".equals(method.getName())) return proxy == args[0];
+		if ("hashCode".equals(method.getName())) return System.identityHashCode(proxy);
+		if ("toString".equals(method.getName())) return "stub";
+		Class<?> type = method.getReturnType();
+		if (type == boolean.class) return false;
+		if (type == int.class) return 0;
+		if (type == long.class) return 0L;
+		return null;
+	}
+}
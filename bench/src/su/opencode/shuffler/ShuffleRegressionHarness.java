@@ -0,0 +1,211 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler;
+
+import com.intellij.ide.highlighter.JavaFileType;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.search.FileTypeIndex;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.testFramework.fixtures.LightCodeInsightFixtureTestCase;
+
+import javax.tools.*;
+import java.io.*;
+import java.net.URI;
+import java.util.*;
+
+/*
+ * End-to-end shuffle of generated projects in a light fixture.
+ * Wall time, renames per second and retained heap are compared with baselines,
+ * shuffled project has to compile with javac afterwards.
+ *
+ * System properties:
+ *   shuffler.harness.sizes            comma separated project sizes to run, 1000 by default (also 10000, 50000)
+ *   shuffler.harness.baselines        baselines file, bench/baselines.properties by default
+ *   shuffler.harness.tolerance        allowed regression, 0.2 by default
+ *   shuffler.harness.updateBaselines  write measured values as new baselines instead of comparing
+ */
+public class ShuffleRegressionHarness extends LightCodeInsightFixtureTestCase {
+
+	private static final String SIZES             = System.getProperty("shuffler.harness.sizes", "1000");
+	private static final String BASELINES         = System.getProperty("shuffler.harness.baselines", "bench/baselines.properties");
+	private static final double TOLERANCE         = Double.parseDouble(System.getProperty("shuffler.harness.tolerance", "0.2"));
+	private static final boolean UPDATE_BASELINES = Boolean.getBoolean("shuffler.harness.updateBaselines");
+
+	public void testShuffle1k() throws Exception {
+		shuffle(1000);
+	}
+
+	public void testShuffle10k() throws Exception {
+		shuffle(10000);
+	}
+
+	public void testShuffle50k() throws Exception {
+		shuffle(50000);
+	}
+
+	private static boolean isEnabled(int classes) {
+		return Arrays.asList(SIZES.split("\\s*,\\s*")).contains(String.valueOf(classes));
+	}
+
+	private void shuffle(int classes) throws Exception {
+		// JUnit 3 runner has no assumptions, skipped sizes are at least reported, so they don't pass unnoticed
+		if (!isEnabled(classes)) {
+			System.out.println("SKIPPED " + getName() + ": " + classes + " classes not in shuffler.harness.sizes=" + SIZES);
+			return;
+		}
+
+		SyntheticProject.generate(classes, new SyntheticProject.Sink() {
+			@Override
+			public void add(String path, String text) {
+				myFixture.addFileToProject(path, text);
+			}
+		});
+
+		ShuffleSettings settings = new ShuffleSettings();
+		// every run starts from scratch, so runs are comparable
+		settings.setUseModelCache(false);
+		settings.setIncrementalShuffle(false);
+		// baselines are of runs with --bulk, as large projects are shuffled on build agents
+		settings.setBulkMode(true);
+
+		ShuffleRunner runner = new ShuffleRunner(new EmptyProgressIndicator(), getProject(),
+												 GlobalSearchScope.projectScope(getProject()), settings);
+		runner.getMetrics().setForceGc(true);
+		runner.run();
+		System.out.println(runner.getSummary());
+
+		assertEquals("Files failed to shuffle", 0, runner.getFilesFailed());
+		assertTrue("Nothing was renamed", runner.getRenamed() > 0);
+		assertCompiles();
+
+		Properties measured = new Properties();
+		long elapsed = Math.max(1, runner.getElapsed());
+		measured.setProperty(classes + ".wallMs", String.valueOf(elapsed));
+		measured.setProperty(classes + ".renamesPerSecond", String.valueOf(runner.getRenamed() * 1000L / elapsed));
+		measured.setProperty(classes + ".retainedHeapMb", String.valueOf(runner.getMetrics().getRetainedHeap() >> 20));
+		System.out.println(measured);
+
+		compareWithBaselines(classes, measured);
+	}
+
+	// shuffled text is taken from documents, so unsaved changes are compiled too
+	private void assertCompiles() throws IOException {
+		List<JavaFileObject> sources = new ArrayList<JavaFileObject>();
+		Collection<VirtualFile> files = FileTypeIndex.getFiles(JavaFileType.INSTANCE, GlobalSearchScope.projectScope(getProject()));
+		for (VirtualFile file : files) {
+			Document document = FileDocumentManager.getInstance().getDocument(file);
+			assertNotNull(file.getPath(), document);
+			sources.add(new Source(file.getPath(), document.getText()));
+		}
+
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		assertNotNull("Harness should run on JDK", compiler);
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+		File output = FileUtil.createTempDirectory("shuffled", null);
+		try {
+			StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+			boolean compiled = compiler.getTask(null, fileManager, diagnostics,
+												Arrays.asList("-d", output.getPath(), "-proc:none", "-nowarn"),
+												null, sources).call();
+			fileManager.close();
+			if (!compiled) {
+				StringBuilder sb = new StringBuilder("Shuffled project doesn't compile:");
+				int shown = 0;
+				for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+					if (diagnostic.getKind() != Diagnostic.Kind.ERROR) continue;
+					sb.append('\n').append(diagnostic);
+					if (++shown == 20) break;
+				}
+				fail(sb.toString());
+			}
+		} finally {
+			FileUtil.delete(output);
+		}
+	}
+
+	private static void compareWithBaselines(int classes, Properties measured) throws IOException {
+		File file = new File(BASELINES);
+		Properties baselines = new Properties();
+		if (file.isFile()) {
+			InputStream in = new FileInputStream(file);
+			try {
+				baselines.load(in);
+			} finally {
+				in.close();
+			}
+		}
+
+		if (UPDATE_BASELINES) {
+			baselines.putAll(measured);
+			OutputStream out = new FileOutputStream(file);
+			try {
+				baselines.store(out, "Shuffle regression baselines, see ShuffleRegressionHarness");
+			} finally {
+				out.close();
+			}
+			return;
+		}
+
+		List<String> regressions = new ArrayList<String>();
+		checkAbove(regressions, baselines, measured, classes + ".wallMs");
+		checkBelow(regressions, baselines, measured, classes + ".renamesPerSecond");
+		checkAbove(regressions, baselines, measured, classes + ".retainedHeapMb");
+		assertTrue("Regressions against " + file + ": " + regressions, regressions.isEmpty());
+	}
+
+	// lower is better
+	private static void checkAbove(List<String> regressions, Properties baselines, Properties measured, String key) {
+		String baseline = baselines.getProperty(key);
+		if (baseline == null) return;
+		long expected = Long.parseLong(baseline);
+		long actual = Long.parseLong(measured.getProperty(key));
+		if (actual > expected * (1 + TOLERANCE)) {
+			regressions.add(key + " " + actual + " > " + expected);
+		}
+	}
+
+	// higher is better
+	private static void checkBelow(List<String> regressions, Properties baselines, Properties measured, String key) {
+		String baseline = baselines.getProperty(key);
+		if (baseline == null) return;
+		long expected = Long.parseLong(baseline);
+		long actual = Long.parseLong(measured.getProperty(key));
+		if (actual < expected * (1 - TOLERANCE)) {
+			regressions.add(key + " " + actual + " < " + expected);
+		}
+	}
+
+	private static class Source extends SimpleJavaFileObject {
+		private String text;
+
+		public Source(String path, String text) {
+			super(URI.create("string:///" + path.replace('\\', '/').replaceFirst("^/+", "")), Kind.SOURCE);
+			this.text = text;
+		}
+
+		@Override
+		public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+			return text;
+		}
+	}
+}
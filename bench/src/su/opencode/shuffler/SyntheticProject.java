@@ -0,0 +1,185 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler;
+
+/*
+ * Generates a java project shaped like a typical enterprise code base:
+ * packages of entities annotated with persistence annotations, chains of subclasses overriding each other,
+ * private fields with public getters and setters, private helpers with locals and classes using each other.
+ * Output only depends on the number of classes, so runs of the same size are comparable.
+ */
+public class SyntheticProject {
+
+	public interface Sink {
+		void add(String path, String text);
+	}
+
+	private static final int PACKAGE_SIZE = 100;
+	private static final int DEPTH        = 8;
+	private static final int ENTITY_EVERY = 5;
+
+	private static final String[] NOUNS = {
+		"order", "customer", "invoice", "account", "payment", "product", "item", "price", "address", "report",
+		"session", "user", "message", "event", "record", "balance", "contract", "delivery", "tariff", "document"
+	};
+	private static final String[] VERBS = {
+		"compute", "load", "save", "find", "update", "build", "check", "resolve", "parse", "format"
+	};
+
+	public static void generate(int classes, Sink sink) {
+		annotations(sink);
+		for (int i = 0; i < classes; i++) {
+			sink.add(path(i), source(i));
+		}
+		for (int p = 0; p * PACKAGE_SIZE < classes; p++) {
+			sink.add("p" + p + "/Services" + p + ".java", services(p, Math.min(classes, (p + 1) * PACKAGE_SIZE)));
+		}
+	}
+
+	// persistence annotations are ignore markers of shuffle, sources are generated so project compiles standalone
+	private static void annotations(Sink sink) {
+		String[] names = {"Entity", "Column", "Id"};
+		for (String name : names) {
+			sink.add("javax/persistence/" + name + ".java",
+					 "package javax.persistence;\n\n" +
+					 "import java.lang.annotation.*;\n\n" +
+					 "@Retention(RetentionPolicy.RUNTIME)\n" +
+					 "public @interface " + name + " {\n" +
+					 "}\n");
+		}
+	}
+
+	private static String path(int i) {
+		return packageName(i) + "/" + className(i) + ".java";
+	}
+
+	private static String packageName(int i) {
+		return "p" + (i / PACKAGE_SIZE);
+	}
+
+	static String className(int i) {
+		return capitalize(NOUNS[i % NOUNS.length]) + capitalize(NOUNS[(i / NOUNS.length) % NOUNS.length]) + i;
+	}
+
+	private static boolean isRoot(int i) {
+		return (i % PACKAGE_SIZE) % DEPTH == 0;
+	}
+
+	private static int chainRoot(int i) {
+		return i - (i % PACKAGE_SIZE) % DEPTH;
+	}
+
+	private static String source(int i) {
+		String name = className(i);
+		String first = NOUNS[(i * 7) % NOUNS.length];
+		String second = NOUNS[(i * 11 + 3) % NOUNS.length];
+		String verb = VERBS[chainRoot(i) % VERBS.length];
+		boolean entity = i % ENTITY_EVERY == 0;
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("package ").append(packageName(i)).append(";\n\n");
+		if (entity) {
+			sb.append("import javax.persistence.*;\n\n");
+		}
+		sb.append("/**\n * Synthetic class ").append(i).append(".\n */\n");
+		if (entity) {
+			sb.append("@Entity\n");
+		}
+		sb.append("public class ").append(name);
+		if (!isRoot(i)) {
+			sb.append(" extends ").append(className(i - 1));
+		}
+		sb.append(" {\n\n");
+
+		if (entity) {
+			sb.append("    @Id\n");
+			sb.append("    private long id;\n");
+			sb.append("    @Column\n");
+		}
+		sb.append("    private int ").append(first).append("Count;\n");
+		sb.append("    private String ").append(second).append("Name;\n");
+		sb.append("    private static final int MAX_").append(first.toUpperCase()).append("_COUNT = ").append(i % 97 + 3).append(";\n\n");
+
+		getterAndSetter(sb, "int", first + "Count");
+		getterAndSetter(sb, "String", second + "Name");
+
+		// overridden along the chain, renamed together with the whole hierarchy
+		sb.append("    protected int ").append(verb).append("Total(int factor) {\n");
+		if (isRoot(i)) {
+			sb.append("        return ").append(first).append("Count * factor;\n");
+		} else {
+			sb.append("        int inherited = super.").append(verb).append("Total(factor);\n");
+			sb.append("        return inherited + ").append(first).append("Count;\n");
+		}
+		sb.append("    }\n\n");
+
+		sb.append("    private int ").append(verb).append(capitalize(second)).append("(int limit) {\n");
+		sb.append("        int result = 0;\n");
+		sb.append("        for (int index = 0; index < limit && index < MAX_").append(first.toUpperCase()).append("_COUNT; index++) {\n");
+		sb.append("            // counts every ").append(second).append("\n");
+		sb.append("            int partial = ").append(verb).append("Total(index);\n");
+		sb.append("            result += partial;\n");
+		sb.append("        }\n");
+		sb.append("        return result + (").append(second).append("Name != null ? ").append(second).append("Name.length() : 0);\n");
+		sb.append("    }\n\n");
+
+		sb.append("    public int summary() {\n");
+		sb.append("        return ").append(verb).append(capitalize(second)).append("(").append(first).append("Count);\n");
+		sb.append("    }\n\n");
+
+		sb.append("    private static class ").append(capitalize(first)).append("Holder {\n");
+		sb.append("        private ").append(name).append(" value;\n");
+		sb.append("    }\n");
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+	private static void getterAndSetter(StringBuilder sb, String type, String field) {
+		String property = capitalize(field);
+		sb.append("    public ").append(type).append(" get").append(property).append("() {\n");
+		sb.append("        return ").append(field).append(";\n");
+		sb.append("    }\n\n");
+		sb.append("    public void set").append(property).append("(").append(type).append(" ").append(field).append(") {\n");
+		sb.append("        this.").append(field).append(" = ").append(field).append(";\n");
+		sb.append("    }\n\n");
+	}
+
+	// package private service using classes of its package, so renames have usages in other files
+	private static String services(int p, int end) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("package p").append(p).append(";\n\n");
+		sb.append("class Services").append(p).append(" {\n\n");
+		sb.append("    private int total;\n\n");
+		for (int i = p * PACKAGE_SIZE; i < end; i++) {
+			String name = className(i);
+			String first = NOUNS[(i * 7) % NOUNS.length];
+			sb.append("    private void use").append(i).append("() {\n");
+			sb.append("        ").append(name).append(" instance = new ").append(name).append("();\n");
+			sb.append("        instance.set").append(capitalize(first)).append("Count(").append(i).append(");\n");
+			sb.append("        total += instance.summary();\n");
+			sb.append("    }\n\n");
+		}
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+	private static String capitalize(String s) {
+		return Character.toUpperCase(s.charAt(0)) + s.substring(1);
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler.core;
+
+/*
+ * Splits identifiers the same way as StringUtils.splitByCharacterTypeCamelCase,
+ * but works over char ranges, so no arrays or strings are allocated per token.
+ */
+public final class CamelCaseTokenizer {
+
+	private CamelCaseTokenizer() {
+	}
+
+	/*
+	 * @return end (exclusive) of the token that starts at {@code start}
+	 */
+	public static int tokenEnd(CharSequence s, int start) {
+		int length = s.length();
+		int currentType = Character.getType(s.charAt(start));
+		for (int pos = start + 1; pos < length; pos++) {
+			int type = Character.getType(s.charAt(pos));
+			if (type == currentType) continue;
+			if (type == Character.LOWERCASE_LETTER && currentType == Character.UPPERCASE_LETTER) {
+				// last upper case letter belongs to the following lower case word: "ASFRules" -> "ASF", "Rules"
+				if (pos - 1 != start) {
+					return pos - 1;
+				}
+			} else {
+				return pos;
+			}
+			currentType = type;
+		}
+		return length;
+	}
+
+	/*
+	 * Tokens that contain anything besides latin letters and digits are not used in chains.
+	 */
+	public static boolean isWord(CharSequence s, int start, int end) {
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public static char toLowerCase(char c) {
+		return c >= 'A' && c <= 'Z' ? (char)(c + ('a' - 'A')) : c;
+	}
+
+	public static boolean isBlank(CharSequence s) {
+		if (s == null) return true;
+		for (int i = 0; i < s.length(); i++) {
+			if (!Character.isWhitespace(s.charAt(i))) return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler.core;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+ * Markov chain of camel-case tokens of identifiers.
+ * Tokens are interned to int ids, transitions counted in primitive tables,
+ * empty token (id 0) marks start and end of a name.
+ *
+ * Model is not thread-safe, concurrent builders should use own models and merge them.
+ */
+public class ChainModel {
+
+	public static final int BOUNDARY = 0;
+
+	private TokenInterner    tokens      = new TokenInterner();
+	private TransitionCounts transitions = new TransitionCounts();
+	private int[]            rowTotals   = new int[64];
+
+	public void add(CharSequence name) {
+		add(name, 1);
+	}
+
+	/*
+	 * Counts transitions of name {@code count} times, negative count subtracts previously added name.
+	 */
+	public void add(CharSequence name, int count) {
+		if (count == 0 || CamelCaseTokenizer.isBlank(name)) return;
+
+		int from = BOUNDARY;
+		int length = name.length();
+		int start = 0;
+		while (start < length) {
+			int end = CamelCaseTokenizer.tokenEnd(name, start);
+			if (CamelCaseTokenizer.isWord(name, start, end)) {
+				int to = count > 0 ? tokens.intern(name, start, end) : tokens.find(name, start, end);
+				if (to < 0) return;
+				addTransition(from, to, count);
+				from = to;
+			}
+			start = end;
+		}
+		addTransition(from, BOUNDARY, count);
+	}
+
+	public void merge(ChainModel other) {
+		final int[] ids = new int[other.tokens.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = tokens.intern(other.tokens.token(i));
+		}
+		other.transitions.visit(new TransitionCounts.Visitor() {
+			@Override
+			public void visit(int from, int to, int count) {
+				addTransition(ids[from], ids[to], count);
+			}
+		});
+	}
+
+	public void addTransition(int from, int to, int count) {
+		int before = transitions.get(from, to);
+		int after = transitions.add(from, to, count);
+		if (from >= rowTotals.length) {
+			rowTotals = Arrays.copyOf(rowTotals, Math.max(rowTotals.length * 2, from + 1));
+		}
+		rowTotals[from] += after - before;
+	}
+
+	public int intern(CharSequence token) {
+		return tokens.intern(token, 0, token.length());
+	}
+
+	public int tokenCount() {
+		return tokens.size();
+	}
+
+	public String token(int id) {
+		return tokens.token(id);
+	}
+
+	public int count(int from, int to) {
+		return transitions.get(from, to);
+	}
+
+	public int rowTotal(int from) {
+		return from < rowTotals.length ? rowTotals[from] : 0;
+	}
+
+	public int transitionCount() {
+		return transitions.size();
+	}
+
+	public void visit(TransitionCounts.Visitor visitor) {
+		transitions.visit(visitor);
+	}
+
+	public void write(final DataOutput out) throws IOException {
+		out.writeInt(tokens.size());
+		for (int id = 0; id < tokens.size(); id++) {
+			out.writeUTF(tokens.token(id));
+		}
+		out.writeInt(transitions.size());
+		final IOException[] error = new IOException[1];
+		transitions.visit(new TransitionCounts.Visitor() {
+			@Override
+			public void visit(int from, int to, int count) {
+				if (error[0] != null) return;
+				try {
+					out.writeInt(from);
+					out.writeInt(to);
+					out.writeInt(count);
+				} catch (IOException ex) {
+					error[0] = ex;
+				}
+			}
+		});
+		if (error[0] != null) throw error[0];
+	}
+
+	public static ChainModel read(DataInput in) throws IOException {
+		ChainModel model = new ChainModel();
+		int tokenCount = in.readInt();
+		for (int id = 0; id < tokenCount; id++) {
+			if (model.intern(in.readUTF()) != id) {
+				throw new IOException("Corrupted token table");
+			}
+		}
+		int transitionCount = in.readInt();
+		for (int i = 0; i < transitionCount; i++) {
+			int from = in.readInt();
+			int to = in.readInt();
+			int count = in.readInt();
+			if (from < 0 || from >= tokenCount || to < 0 || to >= tokenCount) {
+				throw new IOException("Corrupted transition table");
+			}
+			model.addTransition(from, to, count);
+		}
+		return model;
+	}
+
+	public double probability(int from, int to) {
+		int total = rowTotal(from);
+		return total == 0 ? 0 : transitions.get(from, to) / (double)total;
+	}
+}
@@ -0,0 +1,261 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler.core;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/*
+ * Prebuilt chains, e.g. of library sources, stored in a memory-mapped file.
+ * Tokens are decoded only when model is blended into project chains, blending interns tokens of used transitions
+ * into the chain, so those end up in heap along with their counts. Unused tokens are never decoded.
+ * File is checked when opened, so blending never reads outside of it.
+ *
+ * Layout (big endian):
+ *   int magic, int version, long source key, int flags, int[3] section offsets;
+ *   section: int token count, int transition count, int[token count] token offsets,
+ *            int[transition count * 3] transitions as (from, to, count),
+ *            tokens as (int length, utf-8 bytes).
+ */
+public class CorpusModel implements Closeable {
+
+	public enum Section {VARIABLES, CLASSES, METHODS}
+
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static final int     MAGIC       = 0x5348434d;
+	static final int     VERSION     = 1;
+	static final int     LOCALS_ONLY = 1;
+
+	private static final int HEADER = 4 + 4 + 8 + 4 + 4 * 3;
+
+	private RandomAccessFile file;
+	private ByteBuffer       buffer;
+
+	public CorpusModel(File corpusFile) throws IOException {
+		this.file = new RandomAccessFile(corpusFile, "r");
+		FileChannel channel = file.getChannel();
+		this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		if (buffer.capacity() < HEADER || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			close();
+			throw new IOException("Not a corpus model: " + corpusFile);
+		}
+		try {
+			for (Section section : Section.values()) {
+				validate(section);
+			}
+		} catch (IOException ex) {
+			close();
+			throw new IOException("Corrupted corpus model " + corpusFile + ": " + ex.getMessage());
+		}
+	}
+
+	private void validate(Section section) throws IOException {
+		int base = sectionOffset(section);
+		if (base < HEADER || base > buffer.capacity() - 8) {
+			throw new IOException(section + " section offset " + base + " is out of file");
+		}
+		int tokenCount = buffer.getInt(base);
+		int transitionCount = buffer.getInt(base + 4);
+		if (tokenCount < 0 || transitionCount < 0
+			|| base + 8 + 4L * tokenCount + 12L * transitionCount > buffer.capacity()) {
+			throw new IOException(section + " section of " + tokenCount + " tokens and "
+								  + transitionCount + " transitions is out of file");
+		}
+
+		for (int id = 0; id < tokenCount; id++) {
+			int offset = buffer.getInt(base + 8 + 4 * id);
+			if (offset < HEADER || offset > buffer.capacity() - 4
+				|| buffer.getInt(offset) < 0 || offset + 4L + buffer.getInt(offset) > buffer.capacity()) {
+				throw new IOException(section + " token " + id + " is out of file");
+			}
+		}
+
+		int offset = base + 8 + 4 * tokenCount;
+		for (int i = 0; i < transitionCount; i++, offset += 12) {
+			int from = buffer.getInt(offset);
+			int to = buffer.getInt(offset + 4);
+			if (from < 0 || from >= tokenCount || to < 0 || to >= tokenCount) {
+				throw new IOException(section + " transition " + from + " -> " + to + " refers to unknown token");
+			}
+		}
+	}
+
+	/*
+	 * @return key of sources the model was built from, so caller can tell whether it's outdated
+	 */
+	public long getSourceKey() {
+		return buffer.getLong(8);
+	}
+
+	public boolean isLocalsOnly() {
+		return (buffer.getInt(16) & LOCALS_ONLY) != 0;
+	}
+
+	public int tokenCount(Section section) {
+		return buffer.getInt(sectionOffset(section));
+	}
+
+	public int transitionCount(Section section) {
+		return buffer.getInt(sectionOffset(section) + 4);
+	}
+
+	public String token(Section section, int id) {
+		int offset = buffer.getInt(sectionOffset(section) + 8 + 4 * id);
+		int length = buffer.getInt(offset);
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(offset + 4 + i);
+		}
+		return new String(bytes, UTF8);
+	}
+
+	/*
+	 * Adds transitions of the section to {@code chain}, counts are scaled by {@code weight}.
+	 * Transitions that scale below one are dropped.
+	 */
+	public void blendInto(Section section, ChainModel chain, double weight) {
+		if (weight <= 0) return;
+		int base = sectionOffset(section);
+		int tokenCount = buffer.getInt(base);
+		int transitionCount = buffer.getInt(base + 4);
+
+		// corpus token ids are mapped to chain ids on first use
+		int[] ids = new int[tokenCount];
+		for (int i = 1; i < tokenCount; i++) {
+			ids[i] = -1;
+		}
+
+		int offset = base + 8 + 4 * tokenCount;
+		for (int i = 0; i < transitionCount; i++, offset += 12) {
+			int count = (int)Math.round(buffer.getInt(offset + 8) * weight);
+			if (count <= 0) continue;
+			int from = buffer.getInt(offset);
+			int to = buffer.getInt(offset + 4);
+			if (ids[from] < 0) ids[from] = chain.intern(token(section, from));
+			if (ids[to] < 0) ids[to] = chain.intern(token(section, to));
+			chain.addTransition(ids[from], ids[to], count);
+		}
+	}
+
+	private int sectionOffset(Section section) {
+		return buffer.getInt(20 + 4 * section.ordinal());
+	}
+
+	@Override
+	public void close() throws IOException {
+		buffer = null;
+		if (file != null) {
+			file.close();
+			file = null;
+		}
+	}
+
+	/*
+	 * Reads only the header, so outdated model doesn't get mapped before it's replaced.
+	 */
+	public static boolean isCurrent(File corpusFile, long sourceKey, boolean localsOnly) {
+		if (!corpusFile.isFile()) return false;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(corpusFile), HEADER));
+			try {
+				return in.readInt() == MAGIC && in.readInt() == VERSION && in.readLong() == sourceKey
+					   && ((in.readInt() & LOCALS_ONLY) != 0) == localsOnly;
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+
+	public static void write(File corpusFile, long sourceKey, boolean localsOnly,
+							 ChainModel variables, ChainModel classes, ChainModel methods) throws IOException {
+		ChainModel[] sections = new ChainModel[]{variables, classes, methods};
+		byte[][][] tokens = new byte[sections.length][][];
+		int[] offsets = new int[sections.length];
+
+		int offset = HEADER;
+		for (int s = 0; s < sections.length; s++) {
+			ChainModel chain = sections[s];
+			offsets[s] = offset;
+			tokens[s] = new byte[chain.tokenCount()][];
+			offset += 8 + 4 * chain.tokenCount() + 12 * chain.transitionCount();
+			for (int id = 0; id < chain.tokenCount(); id++) {
+				tokens[s][id] = chain.token(id).getBytes(UTF8);
+				offset += 4 + tokens[s][id].length;
+			}
+		}
+
+		File tmp = new File(corpusFile.getPath() + ".tmp");
+		if (corpusFile.getParentFile() != null) {
+			corpusFile.getParentFile().mkdirs();
+		}
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(sourceKey);
+			out.writeInt(localsOnly ? LOCALS_ONLY : 0);
+			for (int sectionOffset : offsets) {
+				out.writeInt(sectionOffset);
+			}
+
+			for (int s = 0; s < sections.length; s++) {
+				ChainModel chain = sections[s];
+				out.writeInt(chain.tokenCount());
+				out.writeInt(chain.transitionCount());
+				int tokenOffset = offsets[s] + 8 + 4 * chain.tokenCount() + 12 * chain.transitionCount();
+				for (byte[] token : tokens[s]) {
+					out.writeInt(tokenOffset);
+					tokenOffset += 4 + token.length;
+				}
+
+				final IOException[] error = new IOException[1];
+				chain.visit(new TransitionCounts.Visitor() {
+					@Override
+					public void visit(int from, int to, int count) {
+						if (error[0] != null) return;
+						try {
+							out.writeInt(from);
+							out.writeInt(to);
+							out.writeInt(count);
+						} catch (IOException ex) {
+							error[0] = ex;
+						}
+					}
+				});
+				if (error[0] != null) throw error[0];
+
+				for (byte[] token : tokens[s]) {
+					out.writeInt(token.length);
+					out.write(token);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		if (corpusFile.exists() && !corpusFile.delete() || !tmp.renameTo(corpusFile)) {
+			tmp.delete();
+			throw new IOException("Can't replace " + corpusFile);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler.core;
+
+import java.util.*;
+
+/*
+ * Java naming conventions for sampled token lists.
+ */
+public class NameConventions {
+
+	private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList(
+		"abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class", "const",
+		"continue", "default", "do", "double", "else", "enum", "extends", "final", "finally", "float",
+		"for", "goto", "if", "implements", "import", "instanceof", "int", "interface", "long", "native",
+		"new", "package", "private", "protected", "public", "return", "short", "static", "strictfp", "super",
+		"switch", "synchronized", "this", "throw", "throws", "transient", "try", "void", "volatile", "while",
+		"true", "false", "null"));
+
+	private NameConventions() {
+	}
+
+	/*
+	 * Keywords are compared ignoring case, names like {@code Int} or {@code NULL} are confusing anyway.
+	 */
+	public static boolean isKeyword(String name) {
+		return name.length() == 0 || KEYWORDS.contains(name.toLowerCase());
+	}
+
+	public static String className(List<String> name) {
+		StringBuilder sb = new StringBuilder();
+		for (String part : name) {
+			if (isBlank(part)) continue;
+			appendCapitalized(sb, part);
+		}
+		return sb.toString();
+	}
+
+	public static String localName(List<String> name) {
+		StringBuilder sb = new StringBuilder();
+		for (String part : name) {
+			if (isBlank(part)) continue;
+			appendCapitalized(sb, part);
+		}
+		if (sb.length() == 0) return "";
+		sb.setCharAt(0, Character.toLowerCase(sb.charAt(0)));
+		return sb.toString();
+	}
+
+	public static String constantName(List<String> name) {
+		StringBuilder sb = new StringBuilder();
+		for (String part : name) {
+			if (isBlank(part)) continue;
+			sb.append('_').append(part.toUpperCase());
+		}
+		if (sb.length() == 0) return "";
+		sb.deleteCharAt(0);
+		return sb.toString();
+	}
+
+	private static void appendCapitalized(StringBuilder sb, String part) {
+		String lower = part.toLowerCase();
+		sb.append(Character.toTitleCase(lower.charAt(0))).append(lower, 1, lower.length());
+	}
+
+	static boolean isBlank(String s) {
+		if (s == null) return true;
+		for (int i = 0; i < s.length(); i++) {
+			if (!Character.isWhitespace(s.charAt(i))) return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler.core;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/*
+ * Generates conventional java names from a name model, e.g. for build tooling that runs without IDE.
+ * Generated names are not keywords and are not repeated by the same generator.
+ *
+ * Generator is not thread-safe.
+ */
+public class NameGenerator {
+
+	private static final int ATTEMPTS = 50;
+
+	private NameModel   model;
+	private Random      random;
+	private Set<String> used = new HashSet<String>();
+
+	public NameGenerator(NameModel model) {
+		this(model, new Random());
+	}
+
+	public NameGenerator(NameModel model, Random random) {
+		this.model = model;
+		this.random = random;
+	}
+
+	public String className() {
+		return generate(NameModel.Kind.CLASS, false);
+	}
+
+	public String methodName() {
+		return generate(NameModel.Kind.METHOD, false);
+	}
+
+	public String variableName() {
+		return generate(NameModel.Kind.VARIABLE, false);
+	}
+
+	public String constantName() {
+		return generate(NameModel.Kind.VARIABLE, true);
+	}
+
+	/*
+	 * Marks name as taken, e.g. names that already exist where generated ones go.
+	 */
+	public void reserve(String name) {
+		used.add(name);
+	}
+
+	/*
+	 * @return new name, or null if model can't produce one
+	 */
+	private String generate(NameModel.Kind kind, boolean constant) {
+		NameSampler sampler = model.sampler(kind);
+		if (sampler.isEmpty()) return null;
+		for (int attempts = ATTEMPTS; attempts > 0; attempts--) {
+			String name = conventionalize(kind, constant, sampler.sample(random));
+			if (NameConventions.isKeyword(name) || !used.add(name)) continue;
+			return name;
+		}
+		return null;
+	}
+
+	private static String conventionalize(NameModel.Kind kind, boolean constant, List<String> tokens) {
+		if (constant) return NameConventions.constantName(tokens);
+		return kind == NameModel.Kind.CLASS ? NameConventions.className(tokens) : NameConventions.localName(tokens);
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler.core;
+
+/*
+ * Chains of class, method and variable names.
+ * Identifiers go in, samplers come out, nothing here depends on IDE.
+ *
+ * Model is not thread-safe, concurrent builders should use own models and merge them.
+ */
+public class NameModel {
+
+	public enum Kind {VARIABLE, CLASS, METHOD}
+
+	private ChainModel variableChain = new ChainModel();
+	private ChainModel classChain    = new ChainModel();
+	private ChainModel methodChain   = new ChainModel();
+
+	// compiled lazily and dropped whenever chains change
+	private NameSampler variableSampler;
+	private NameSampler classSampler;
+	private NameSampler methodSampler;
+
+	public void add(Kind kind, CharSequence name) {
+		add(kind, name, 1);
+	}
+
+	/*
+	 * Counts name {@code count} times, negative count subtracts previously added name.
+	 */
+	public void add(Kind kind, CharSequence name, int count) {
+		chain(kind).add(name, count);
+		invalidate();
+	}
+
+	public void addAll(Kind kind, Iterable<? extends CharSequence> names) {
+		ChainModel chain = chain(kind);
+		for (CharSequence name : names) {
+			chain.add(name, 1);
+		}
+		invalidate();
+	}
+
+	public void merge(NameModel other) {
+		merge(other.variableChain, other.classChain, other.methodChain);
+	}
+
+	public void merge(ChainModel variables, ChainModel classes, ChainModel methods) {
+		variableChain.merge(variables);
+		classChain.merge(classes);
+		methodChain.merge(methods);
+		invalidate();
+	}
+
+	/*
+	 * Adds prebuilt chains, counts are scaled by {@code weight}.
+	 */
+	public void blend(CorpusModel corpus, double weight) {
+		corpus.blendInto(CorpusModel.Section.VARIABLES, variableChain, weight);
+		corpus.blendInto(CorpusModel.Section.CLASSES, classChain, weight);
+		corpus.blendInto(CorpusModel.Section.METHODS, methodChain, weight);
+		invalidate();
+	}
+
+	public void blend(NameModel other, double weight) {
+		if (weight == 1.0) {
+			merge(other);
+			return;
+		}
+		blend(other.variableChain, variableChain, weight);
+		blend(other.classChain, classChain, weight);
+		blend(other.methodChain, methodChain, weight);
+		invalidate();
+	}
+
+	private static void blend(final ChainModel source, final ChainModel target, final double weight) {
+		final int[] ids = new int[source.tokenCount()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = target.intern(source.token(i));
+		}
+		source.visit(new TransitionCounts.Visitor() {
+			@Override
+			public void visit(int from, int to, int count) {
+				int scaled = (int)Math.round(count * weight);
+				if (scaled > 0) {
+					target.addTransition(ids[from], ids[to], scaled);
+				}
+			}
+		});
+	}
+
+	/*
+	 * Should be called after chains were changed directly.
+	 */
+	public void invalidate() {
+		variableSampler = null;
+		classSampler = null;
+		methodSampler = null;
+	}
+
+	public ChainModel chain(Kind kind) {
+		switch (kind) {
+			case CLASS:  return classChain;
+			case METHOD: return methodChain;
+			default:     return variableChain;
+		}
+	}
+
+	public NameSampler sampler(Kind kind) {
+		switch (kind) {
+			case CLASS:
+				if (classSampler == null) {
+					classSampler = NameSampler.compile(classChain);
+				}
+				return classSampler;
+			case METHOD:
+				if (methodSampler == null) {
+					methodSampler = NameSampler.compile(methodChain);
+				}
+				return methodSampler;
+			default:
+				if (variableSampler == null) {
+					variableSampler = NameSampler.compile(variableChain);
+				}
+				return variableSampler;
+		}
+	}
+
+	public ChainModel getClassChain() {
+		return classChain;
+	}
+
+	public ChainModel getMethodChain() {
+		return methodChain;
+	}
+
+	public ChainModel getVariableChain() {
+		return variableChain;
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler.core;
+
+import java.util.*;
+
+/*
+ * Immutable compiled form of a chain, used for name generation.
+ * Every row is stored as an alias table (Vose), so choosing next token takes constant time.
+ * Sampler holds no mutable state and can be shared between threads.
+ */
+public class NameSampler {
+
+	public static final int MAX_TOKENS = 8;
+
+	private static final int EMPTY_NAME_ATTEMPTS = 5;
+
+	private final String[] tokens;
+	private final int[]    rowStart;
+	private final int[]    targets;
+	private final float[]  thresholds;
+	private final int[]    aliases;
+	private final int      maxTokens;
+
+	private NameSampler(String[] tokens, int[] rowStart, int[] targets, double[] weights, int maxTokens) {
+		this.tokens = tokens;
+		this.rowStart = rowStart;
+		this.targets = targets;
+		this.thresholds = new float[targets.length];
+		this.aliases = new int[targets.length];
+		this.maxTokens = maxTokens;
+
+		for (int row = 0; row + 1 < rowStart.length; row++) {
+			buildAliasRow(weights, rowStart[row], rowStart[row + 1]);
+		}
+	}
+
+	public static NameSampler compile(ChainModel chain) {
+		return compile(chain, MAX_TOKENS);
+	}
+
+	public static NameSampler compile(final ChainModel chain, int maxTokens) {
+		int tokenCount = chain.tokenCount();
+		final int[] rowStart = new int[tokenCount + 1];
+		chain.visit(new TransitionCounts.Visitor() {
+			@Override
+			public void visit(int from, int to, int count) {
+				rowStart[from + 1]++;
+			}
+		});
+		for (int i = 0; i < tokenCount; i++) {
+			rowStart[i + 1] += rowStart[i];
+		}
+
+		final int[] fill = Arrays.copyOf(rowStart, tokenCount);
+		final int[] targets = new int[rowStart[tokenCount]];
+		final double[] weights = new double[targets.length];
+		chain.visit(new TransitionCounts.Visitor() {
+			@Override
+			public void visit(int from, int to, int count) {
+				int i = fill[from]++;
+				targets[i] = to;
+				weights[i] = count;
+			}
+		});
+
+		String[] tokens = new String[tokenCount];
+		for (int i = 0; i < tokenCount; i++) {
+			tokens[i] = chain.token(i);
+		}
+		return new NameSampler(tokens, rowStart, targets, weights, maxTokens);
+	}
+
+	/*
+	 * Generates list of tokens, starting from boundary and until boundary is reached
+	 * or name grows to max tokens.
+	 *
+	 * @return lower-cased tokens of the name, empty list if chain can't produce a name
+	 */
+	public List<String> sample(Random random) {
+		for (int attempt = 0; attempt < EMPTY_NAME_ATTEMPTS; attempt++) {
+			List<String> result = new ArrayList<String>(4);
+			int current = ChainModel.BOUNDARY;
+			while (result.size() < maxTokens) {
+				current = next(current, random);
+				if (current == ChainModel.BOUNDARY) break;
+				result.add(tokens[current]);
+			}
+			if (!result.isEmpty()) return result;
+		}
+		return Collections.emptyList();
+	}
+
+	private int next(int from, Random random) {
+		if (from + 1 >= rowStart.length) return ChainModel.BOUNDARY;
+		int start = rowStart[from];
+		int size = rowStart[from + 1] - start;
+		if (size == 0) return ChainModel.BOUNDARY;
+
+		int i = start + random.nextInt(size);
+		return random.nextFloat() < thresholds[i] ? targets[i] : targets[aliases[i]];
+	}
+
+	public boolean isEmpty() {
+		return targets.length == 0;
+	}
+
+	private void buildAliasRow(double[] weights, int start, int end) {
+		int size = end - start;
+		if (size == 0) return;
+
+		double total = 0;
+		for (int i = start; i < end; i++) {
+			total += weights[i];
+		}
+
+		double[] scaled = new double[size];
+		int[] small = new int[size];
+		int[] large = new int[size];
+		int smallCount = 0;
+		int largeCount = 0;
+		for (int i = 0; i < size; i++) {
+			scaled[i] = weights[start + i] * size / total;
+			if (scaled[i] < 1) {
+				small[smallCount++] = i;
+			} else {
+				large[largeCount++] = i;
+			}
+		}
+
+		while (smallCount > 0 && largeCount > 0) {
+			int less = small[--smallCount];
+			int more = large[--largeCount];
+			thresholds[start + less] = (float)scaled[less];
+			aliases[start + less] = start + more;
+			scaled[more] = scaled[more] + scaled[less] - 1;
+			if (scaled[more] < 1) {
+				small[smallCount++] = more;
+			} else {
+				large[largeCount++] = more;
+			}
+		}
+		while (largeCount > 0) {
+			int i = large[--largeCount];
+			thresholds[start + i] = 1;
+			aliases[start + i] = start + i;
+		}
+		// leftovers are caused by rounding only
+		while (smallCount > 0) {
+			int i = small[--smallCount];
+			thresholds[start + i] = 1;
+			aliases[start + i] = start + i;
+		}
+	}
+
+	/*
+	 * Builds sampler from arbitrary (not necessary normalized) transition weights.
+	 */
+	public static class Builder {
+		private Map<String, Integer>               ids       = new HashMap<String, Integer>();
+		private List<String>                       names     = new ArrayList<String>();
+		private Map<Integer, Map<Integer, Double>> rows      = new HashMap<Integer, Map<Integer, Double>>();
+		private int                                maxTokens = MAX_TOKENS;
+
+		public Builder() {
+			id("");
+		}
+
+		public Builder maxTokens(int maxTokens) {
+			this.maxTokens = maxTokens;
+			return this;
+		}
+
+		public Builder add(String from, String to, double weight) {
+			if (weight <= 0) return this;
+			int fromId = id(from == null ? "" : from.toLowerCase());
+			int toId = id(to == null ? "" : to.toLowerCase());
+			Map<Integer, Double> row = rows.get(fromId);
+			if (row == null) {
+				row = new LinkedHashMap<Integer, Double>();
+				rows.put(fromId, row);
+			}
+			Double current = row.get(toId);
+			row.put(toId, current == null ? weight : current + weight);
+			return this;
+		}
+
+		private int id(String token) {
+			Integer id = ids.get(token);
+			if (id == null) {
+				id = names.size();
+				ids.put(token, id);
+				names.add(token);
+			}
+			return id;
+		}
+
+		public NameSampler build() {
+			int tokenCount = names.size();
+			int[] rowStart = new int[tokenCount + 1];
+			int transitions = 0;
+			for (int from = 0; from < tokenCount; from++) {
+				rowStart[from] = transitions;
+				Map<Integer, Double> row = rows.get(from);
+				transitions += row == null ? 0 : row.size();
+			}
+			rowStart[tokenCount] = transitions;
+
+			int[] targets = new int[transitions];
+			double[] weights = new double[transitions];
+			int i = 0;
+			for (int from = 0; from < tokenCount; from++) {
+				Map<Integer, Double> row = rows.get(from);
+				if (row == null) continue;
+				for (Map.Entry<Integer, Double> cell : row.entrySet()) {
+					targets[i] = cell.getKey();
+					weights[i] = cell.getValue();
+					i++;
+				}
+			}
+			return new NameSampler(names.toArray(new String[tokenCount]), rowStart, targets, weights, maxTokens);
+		}
+	}
+}
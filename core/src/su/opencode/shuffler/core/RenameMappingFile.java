@@ -0,0 +1,252 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler.core;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/*
+ * Memory-mapped rename mapping, records are sorted by new name, so lookup is a binary search over the file.
+ *
+ * Layout (big endian):
+ *   int magic, int version, int record count,
+ *   int[count] offsets of records sorted by new name,
+ *   records: byte kind, then new name, owner, old name, file as (int length, utf-8 bytes).
+ */
+public class RenameMappingFile implements Closeable {
+
+	static final int     MAGIC   = 0x53484d50;
+	static final int     VERSION = 1;
+	static final Charset UTF8    = Charset.forName("UTF-8");
+
+	private static final RenameRecord.Kind[] KINDS = RenameRecord.Kind.values();
+
+	private RandomAccessFile file;
+	private ByteBuffer       buffer;
+	private int              count;
+
+	public RenameMappingFile(File mappingFile) throws IOException {
+		this.file = new RandomAccessFile(mappingFile, "r");
+		FileChannel channel = file.getChannel();
+		MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		init(mapped, mappingFile);
+	}
+
+	private RenameMappingFile(ByteBuffer buffer, File mappingFile) throws IOException {
+		init(buffer, mappingFile);
+	}
+
+	private void init(ByteBuffer buffer, File mappingFile) throws IOException {
+		this.buffer = buffer;
+		if (buffer.capacity() < 12 || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			close();
+			throw new IOException("Not a rename mapping file: " + mappingFile);
+		}
+		this.count = buffer.getInt(8);
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public RenameRecord get(int index) {
+		int offset = buffer.getInt(12 + 4 * index);
+		RenameRecord.Kind kind = KINDS[buffer.get(offset++)];
+		String newName = readString(offset);
+		offset += 4 + buffer.getInt(offset);
+		String owner = readString(offset);
+		offset += 4 + buffer.getInt(offset);
+		String oldName = readString(offset);
+		offset += 4 + buffer.getInt(offset);
+		String fileName = readString(offset);
+		return new RenameRecord(kind, owner, oldName, newName, fileName);
+	}
+
+	/*
+	 * @return all records that renamed something to {@code newName}
+	 */
+	public List<RenameRecord> find(String newName) {
+		byte[] key = newName.getBytes(UTF8);
+		int low = 0;
+		int high = count - 1;
+		// leftmost record with new name >= key
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (compareNewName(mid, key) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		List<RenameRecord> result = new ArrayList<RenameRecord>(1);
+		for (int i = low; i < count && compareNewName(i, key) == 0; i++) {
+			result.add(get(i));
+		}
+		return result;
+	}
+
+	private int compareNewName(int index, byte[] key) {
+		int offset = buffer.getInt(12 + 4 * index) + 1;
+		int length = buffer.getInt(offset);
+		offset += 4;
+		int common = Math.min(length, key.length);
+		for (int i = 0; i < common; i++) {
+			int diff = (buffer.get(offset + i) & 0xff) - (key[i] & 0xff);
+			if (diff != 0) return diff;
+		}
+		return length - key.length;
+	}
+
+	private String readString(int offset) {
+		int length = buffer.getInt(offset);
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(offset + 4 + i);
+		}
+		return new String(bytes, UTF8);
+	}
+
+	@Override
+	public void close() throws IOException {
+		buffer = null;
+		if (file != null) {
+			file.close();
+			file = null;
+		}
+	}
+
+	/*
+	 * Writes records sorted by new name, records of the existing file are kept unless replaced by new ones.
+	 */
+	public static void write(File mappingFile, Collection<RenameRecord> records, boolean append) throws IOException {
+		Map<String, RenameRecord> merged = new LinkedHashMap<String, RenameRecord>();
+		if (append && mappingFile.isFile()) {
+			// read into heap instead of mapping, mapped file can't be replaced on some platforms until unmapped by gc
+			byte[] bytes = new byte[(int)mappingFile.length()];
+			DataInputStream in = new DataInputStream(new FileInputStream(mappingFile));
+			try {
+				in.readFully(bytes);
+			} finally {
+				in.close();
+			}
+			RenameMappingFile existing = new RenameMappingFile(ByteBuffer.wrap(bytes), mappingFile);
+			for (int i = 0; i < existing.size(); i++) {
+				RenameRecord record = existing.get(i);
+				merged.put(record.identity(), record);
+			}
+		}
+		for (RenameRecord record : records) {
+			merged.put(record.identity(), record);
+		}
+
+		List<byte[][]> encoded = new ArrayList<byte[][]>(merged.size());
+		for (RenameRecord record : merged.values()) {
+			encoded.add(new byte[][]{record.getNewName().getBytes(UTF8), record.getOwner().getBytes(UTF8),
+									 record.getOldName().getBytes(UTF8), record.getFile().getBytes(UTF8),
+									 new byte[]{(byte)record.getKind().ordinal()}});
+		}
+		Collections.sort(encoded, new Comparator<byte[][]>() {
+			@Override
+			public int compare(byte[][] o1, byte[][] o2) {
+				return compareBytes(o1[0], o2[0]);
+			}
+		});
+
+		File tmp = new File(mappingFile.getPath() + ".tmp");
+		if (mappingFile.getParentFile() != null) {
+			mappingFile.getParentFile().mkdirs();
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(encoded.size());
+			int offset = 12 + 4 * encoded.size();
+			for (byte[][] record : encoded) {
+				out.writeInt(offset);
+				offset += 1 + 16 + record[0].length + record[1].length + record[2].length + record[3].length;
+			}
+			for (byte[][] record : encoded) {
+				out.writeByte(record[4][0]);
+				for (int i = 0; i < 4; i++) {
+					out.writeInt(record[i].length);
+					out.write(record[i]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		if (mappingFile.exists() && !mappingFile.delete() || !tmp.renameTo(mappingFile)) {
+			tmp.delete();
+			throw new IOException("Can't replace " + mappingFile);
+		}
+	}
+
+	/*
+	 * Appends records to a journal, so records of a long shuffle don't have to be held in memory until it ends.
+	 */
+	public static void appendJournal(File journal, Collection<RenameRecord> records) throws IOException {
+		if (journal.getParentFile() != null) {
+			journal.getParentFile().mkdirs();
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journal, true), 1 << 16));
+		try {
+			for (RenameRecord record : records) {
+				out.writeByte(record.getKind().ordinal());
+				out.writeUTF(record.getNewName());
+				out.writeUTF(record.getOwner());
+				out.writeUTF(record.getOldName());
+				out.writeUTF(record.getFile());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	public static List<RenameRecord> readJournal(File journal) throws IOException {
+		List<RenameRecord> records = new ArrayList<RenameRecord>();
+		if (!journal.isFile()) return records;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal), 1 << 16));
+		try {
+			int kind;
+			while ((kind = in.read()) >= 0) {
+				String newName = in.readUTF();
+				String owner = in.readUTF();
+				String oldName = in.readUTF();
+				records.add(new RenameRecord(KINDS[kind], owner, oldName, newName, in.readUTF()));
+			}
+		} finally {
+			in.close();
+		}
+		return records;
+	}
+
+	private static int compareBytes(byte[] a, byte[] b) {
+		int common = Math.min(a.length, b.length);
+		for (int i = 0; i < common; i++) {
+			int diff = (a[i] & 0xff) - (b[i] & 0xff);
+			if (diff != 0) return diff;
+		}
+		return a.length - b.length;
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler.core;
+
+/*
+ * Single rename made by shuffle.
+ * Owner is qualified name (as it was before shuffle) of the class containing renamed element,
+ * or package name for top level classes.
+ */
+public class RenameRecord {
+
+	public enum Kind {
+		CLASS, METHOD, FIELD, VARIABLE
+	}
+
+	private final Kind   kind;
+	private final String owner;
+	private final String oldName;
+	private final String newName;
+	private final String file;
+
+	public RenameRecord(Kind kind, String owner, String oldName, String newName, String file) {
+		this.kind = kind;
+		this.owner = owner == null ? "" : owner;
+		this.oldName = oldName;
+		this.newName = newName;
+		this.file = file == null ? "" : file;
+	}
+
+	public RenameRecord withNewName(String newName) {
+		return new RenameRecord(kind, owner, oldName, newName, file);
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public String getOwner() {
+		return owner;
+	}
+
+	public String getOldName() {
+		return oldName;
+	}
+
+	public String getNewName() {
+		return newName;
+	}
+
+	public String getFile() {
+		return file;
+	}
+
+	/*
+	 * Identity of renamed symbol, later records with the same identity replace earlier ones.
+	 */
+	String identity() {
+		return kind + ":" + owner + "#" + oldName + "@" + file;
+	}
+
+	@Override
+	public String toString() {
+		return kind + " " + owner + " " + oldName + " -> " + newName + " (" + file + ")";
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler.core;
+
+import java.io.*;
+import java.util.*;
+
+/*
+ * Rewrites shuffled names in logs and stack traces back to original ones.
+ * Text is streamed through in a single pass, only current token and a bounded cache of resolved names are kept,
+ * mapping itself is looked up in memory-mapped file.
+ *
+ * Dotted names (com.acme.Ab.cd, Outer$Inner) are resolved segment by segment, every resolved class narrows
+ * candidates for the following segment. Standalone names are replaced only if they are unambiguous.
+ */
+public class StackTraceRetracer {
+
+	private static final int MAX_TOKEN_LENGTH = 4096;
+	private static final int CACHE_SIZE       = 10000;
+
+	private RenameMappingFile mapping;
+
+	private Map<String, String> cache = new LinkedHashMap<String, String>(CACHE_SIZE, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	public StackTraceRetracer(RenameMappingFile mapping) {
+		this.mapping = mapping;
+	}
+
+	public void retrace(Reader in, Writer out) throws IOException {
+		char[] buffer = new char[1 << 16];
+		StringBuilder token = new StringBuilder();
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			for (int i = 0; i < read; i++) {
+				char c = buffer[i];
+				if (Character.isJavaIdentifierPart(c) && c != '$' || token.length() > 0 && (c == '.' || c == '$')) {
+					token.append(c);
+					if (token.length() >= MAX_TOKEN_LENGTH) {
+						out.append(token);
+						token.setLength(0);
+					}
+				} else {
+					flush(token, out);
+					out.write(c);
+				}
+			}
+		}
+		flush(token, out);
+		out.flush();
+	}
+
+	private void flush(StringBuilder token, Writer out) throws IOException {
+		if (token.length() == 0) return;
+		out.write(retrace(token.toString()));
+		token.setLength(0);
+	}
+
+	public String retrace(String token) {
+		String cached = cache.get(token);
+		if (cached == null) {
+			cached = resolve(token);
+			cache.put(token, cached);
+		}
+		return cached;
+	}
+
+	private String resolve(String token) {
+		StringBuilder result = new StringBuilder(token.length());
+		// original qualified name of the resolved prefix, null if prefix is not a known class or package
+		String owner = "";
+		int start = 0;
+		while (start <= token.length()) {
+			int end = start;
+			while (end < token.length() && token.charAt(end) != '.' && token.charAt(end) != '$') {
+				end++;
+			}
+			String segment = token.substring(start, end);
+			char separator = end < token.length() ? token.charAt(end) : 0;
+
+			RenameRecord record = segment.isEmpty() ? null : lookup(segment, owner, start == 0 && end == token.length());
+			String original = record != null ? record.getOldName() : segment;
+			result.append(original);
+			if (separator != 0) result.append(separator);
+
+			if (owner != null) {
+				boolean isClass = record == null || record.getKind() == RenameRecord.Kind.CLASS;
+				owner = isClass ? (owner.isEmpty() ? original : owner + "." + original) : null;
+			}
+			start = end + 1;
+		}
+		return result.toString();
+	}
+
+	private RenameRecord lookup(String newName, String owner, boolean standalone) {
+		List<RenameRecord> candidates = mapping.find(newName);
+		if (candidates.isEmpty()) return null;
+
+		if (owner != null) {
+			for (RenameRecord record : candidates) {
+				if (record.getOwner().equals(owner)) {
+					return record;
+				}
+			}
+		}
+		if (!standalone && owner != null && !owner.isEmpty()) {
+			return null;
+		}
+
+		RenameRecord unique = null;
+		for (RenameRecord record : candidates) {
+			if (record.getKind() == RenameRecord.Kind.VARIABLE) continue;
+			if (unique != null && !unique.getOldName().equals(record.getOldName())) {
+				return null;
+			}
+			unique = record;
+		}
+		return unique;
+	}
+
+	/*
+	 * Usage: StackTraceRetracer mapping-file [input [output]], standard streams are used by default.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: StackTraceRetracer <mapping file> [<input> [<output>]]");
+			System.exit(2);
+		}
+		RenameMappingFile mapping = new RenameMappingFile(new File(args[0]));
+		Reader in = null;
+		Writer out = null;
+		try {
+			in = new InputStreamReader(args.length > 1 ? new FileInputStream(args[1]) : System.in, "UTF-8");
+			out = new BufferedWriter(new OutputStreamWriter(args.length > 2 ? new FileOutputStream(args[2]) : System.out,
+															"UTF-8"), 1 << 16);
+			new StackTraceRetracer(mapping).retrace(in, out);
+		} finally {
+			if (in != null) in.close();
+			if (out != null) out.close();
+			mapping.close();
+		}
+	}
+}
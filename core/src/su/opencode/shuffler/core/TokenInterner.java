@@ -0,0 +1,143 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler.core;
+
+import java.util.Arrays;
+
+/*
+ * Maps lower-cased tokens to dense int ids.
+ * Lookup hashes chars of the range directly, string is created only for a token seen for the first time.
+ * Id 0 is reserved for empty token, which marks start and end of a name.
+ */
+public class TokenInterner {
+
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private String[] tokens = new String[64];
+	private int[]    hashes = new int[64];
+	private int      size   = 0;
+
+	// open addressing table of (id + 1), 0 means free slot
+	private int[] slots = new int[128];
+
+	public TokenInterner() {
+		intern("", 0, 0);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public String token(int id) {
+		return tokens[id];
+	}
+
+	public int intern(String token) {
+		return intern(token, 0, token.length());
+	}
+
+	/*
+	 * @return id of lower-cased {@code s[start, end)}, new id is assigned if token is unknown
+	 */
+	public int intern(CharSequence s, int start, int end) {
+		int hash = hash(s, start, end);
+		int mask = slots.length - 1;
+		int slot = mix(hash) & mask;
+		while (slots[slot] != 0) {
+			int id = slots[slot] - 1;
+			if (hashes[id] == hash && matches(tokens[id], s, start, end)) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		int id = size++;
+		if (id == tokens.length) {
+			tokens = Arrays.copyOf(tokens, id * 2);
+			hashes = Arrays.copyOf(hashes, id * 2);
+		}
+		tokens[id] = lowerCase(s, start, end);
+		hashes[id] = hash;
+		slots[slot] = id + 1;
+
+		if (size > slots.length * LOAD_FACTOR) {
+			rehash();
+		}
+		return id;
+	}
+
+	/*
+	 * @return id of lower-cased {@code s[start, end)} or -1 if token is unknown
+	 */
+	public int find(CharSequence s, int start, int end) {
+		int hash = hash(s, start, end);
+		int mask = slots.length - 1;
+		int slot = mix(hash) & mask;
+		while (slots[slot] != 0) {
+			int id = slots[slot] - 1;
+			if (hashes[id] == hash && matches(tokens[id], s, start, end)) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void rehash() {
+		int[] newSlots = new int[slots.length * 2];
+		int mask = newSlots.length - 1;
+		for (int id = 0; id < size; id++) {
+			int slot = mix(hashes[id]) & mask;
+			while (newSlots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			newSlots[slot] = id + 1;
+		}
+		slots = newSlots;
+	}
+
+	private static int hash(CharSequence s, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++) {
+			h = 31 * h + CamelCaseTokenizer.toLowerCase(s.charAt(i));
+		}
+		return h;
+	}
+
+	private static int mix(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean matches(String token, CharSequence s, int start, int end) {
+		if (token.length() != end - start) return false;
+		for (int i = start; i < end; i++) {
+			if (token.charAt(i - start) != CamelCaseTokenizer.toLowerCase(s.charAt(i))) return false;
+		}
+		return true;
+	}
+
+	private static String lowerCase(CharSequence s, int start, int end) {
+		char[] chars = new char[end - start];
+		for (int i = start; i < end; i++) {
+			chars[i - start] = CamelCaseTokenizer.toLowerCase(s.charAt(i));
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler.core;
+
+/*
+ * Counts of (from, to) token id pairs in a primitive open addressing table,
+ * pair is packed into a single long key, so nothing is boxed.
+ */
+public class TransitionCounts {
+
+	public interface Visitor {
+		void visit(int from, int to, int count);
+	}
+
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private long[] keys   = new long[256];
+	private int[]  counts = new int[256];
+	private int    size   = 0;
+
+	public int size() {
+		return size;
+	}
+
+	public int get(int from, int to) {
+		long key = key(from, to);
+		int mask = keys.length - 1;
+		int slot = slot(key, mask);
+		while (counts[slot] != 0) {
+			if (keys[slot] == key) return counts[slot];
+			slot = (slot + 1) & mask;
+		}
+		return 0;
+	}
+
+	/*
+	 * Adds {@code delta} (may be negative) to the count of transition,
+	 * transitions which count drops to zero are removed.
+	 *
+	 * @return new count
+	 */
+	public int add(int from, int to, int delta) {
+		long key = key(from, to);
+		int mask = keys.length - 1;
+		int slot = slot(key, mask);
+		while (counts[slot] != 0) {
+			if (keys[slot] == key) {
+				int count = counts[slot] + delta;
+				if (count <= 0) {
+					remove(slot);
+					return 0;
+				}
+				counts[slot] = count;
+				return count;
+			}
+			slot = (slot + 1) & mask;
+		}
+		if (delta <= 0) return 0;
+
+		keys[slot] = key;
+		counts[slot] = delta;
+		size++;
+		if (size > keys.length * LOAD_FACTOR) {
+			rehash();
+		}
+		return delta;
+	}
+
+	public void visit(Visitor visitor) {
+		for (int slot = 0; slot < keys.length; slot++) {
+			if (counts[slot] != 0) {
+				visitor.visit(from(keys[slot]), to(keys[slot]), counts[slot]);
+			}
+		}
+	}
+
+	// backward shift deletion, keeps probe sequences intact without tombstones
+	private void remove(int slot) {
+		int mask = keys.length - 1;
+		int free = slot;
+		int next = (slot + 1) & mask;
+		while (counts[next] != 0) {
+			int home = slot(keys[next], mask);
+			if (((next - home) & mask) >= ((next - free) & mask)) {
+				keys[free] = keys[next];
+				counts[free] = counts[next];
+				free = next;
+			}
+			next = (next + 1) & mask;
+		}
+		counts[free] = 0;
+		keys[free] = 0;
+		size--;
+	}
+
+	private void rehash() {
+		long[] oldKeys = keys;
+		int[] oldCounts = counts;
+		keys = new long[oldKeys.length * 2];
+		counts = new int[oldCounts.length * 2];
+		int mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldCounts[i] == 0) continue;
+			int slot = slot(oldKeys[i], mask);
+			while (counts[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = oldKeys[i];
+			counts[slot] = oldCounts[i];
+		}
+	}
+
+	private static long key(int from, int to) {
+		return ((long)from << 32) | (to & 0xFFFFFFFFL);
+	}
+
+	private static int from(long key) {
+		return (int)(key >>> 32);
+	}
+
+	private static int to(long key) {
+		return (int)key;
+	}
+
+	private static int slot(long key, int mask) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+}
@@ -24,6 +24,11 @@ import com.intellij.psi.PsiElement;
 import com.intellij.refactoring.openapi.impl.JavaRenameRefactoringImpl;
 import com.intellij.refactoring.rename.SilentRenameProcessor;
 import com.intellij.usageView.UsageInfo;
+import su.opencode.shuffler.MethodHierarchy;
+import su.opencode.shuffler.NameOccupancyIndex;
+import su.opencode.shuffler.ReferenceIndex;
+import su.opencode.shuffler.ShuffleMetrics;
+import su.opencode.shuffler.core.RenameRecord;
 
 import java.util.Collection;
 import java.util.Set;
@@ -61,6 +66,44 @@ public class SilentJavaRenameRefactoring extends JavaRenameRefactoringImpl {
 		this(project, element, newName,false,true);
 	}
 
+	public void setReferenceIndex(ReferenceIndex referenceIndex) {
+		silentProcessor.setReferenceIndex(referenceIndex);
+	}
+
+	public void setOccupancyIndex(NameOccupancyIndex occupancyIndex) {
+		silentProcessor.setOccupancyIndex(occupancyIndex);
+	}
+
+	public void setMetrics(ShuffleMetrics metrics) {
+		silentProcessor.setMetrics(metrics);
+	}
+
+	public void setRenameRecords(Collection<RenameRecord> renameRecords) {
+		silentProcessor.setRenameRecords(renameRecords);
+	}
+
+	public void setMethodHierarchy(MethodHierarchy methodHierarchy) {
+		silentProcessor.setMethodHierarchy(methodHierarchy);
+	}
+
+	/*
+	 * @see SilentRenameProcessor#prepare()
+	 */
+	public UsageInfo[] prepare() {
+		return silentProcessor.prepare();
+	}
+
+	/*
+	 * @see SilentRenameProcessor#apply(UsageInfo[])
+	 */
+	public boolean apply(UsageInfo[] usages) {
+		return silentProcessor.apply(usages);
+	}
+
+	public boolean isStale() {
+		return silentProcessor.isStale();
+	}
+
 	@Override
 	public UsageInfo[] findUsages() {
 		return silentProcessor.findUsages();
@@ -24,12 +24,14 @@ import com.intellij.openapi.project.Project;
 import com.intellij.psi.*;
 import com.intellij.psi.codeStyle.JavaCodeStyleManager;
 import com.intellij.psi.codeStyle.VariableKind;
-import com.intellij.psi.search.searches.OverridingMethodsSearch;
 import com.intellij.psi.util.PropertyUtil;
-import com.intellij.util.Processor;
 import org.apache.commons.lang.StringUtils;
+import su.opencode.shuffler.MethodHierarchy;
+import su.opencode.shuffler.NameOccupancyIndex;
 import su.opencode.shuffler.ShuffleAction;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Map;
 
 /*
@@ -43,6 +45,17 @@ public class SilentRenameJavaVariableProcessor extends RenameJavaVariableProcess
 
 	private boolean renameGettersAndSetters = true;
 
+	private NameOccupancyIndex occupancyIndex;
+	private MethodHierarchy    methodHierarchy;
+
+	public SilentRenameJavaVariableProcessor() {
+	}
+
+	public SilentRenameJavaVariableProcessor(NameOccupancyIndex occupancyIndex, MethodHierarchy methodHierarchy) {
+		this.occupancyIndex = occupancyIndex;
+		this.methodHierarchy = methodHierarchy;
+	}
+
 	public void prepareRenaming(final PsiElement element, final String newName, final Map<PsiElement, String> allRenames) {
 		if (element instanceof PsiField && JavaLanguage.INSTANCE.equals(element.getLanguage())) {
 			prepareFieldRenaming((PsiField)element, newName, allRenames);
@@ -80,7 +93,7 @@ public class SilentRenameJavaVariableProcessor extends RenameJavaVariableProcess
 				getter = null;
 				newGetterName = null;
 			} else {
-				for (PsiMethod method : ShuffleAction.findDeepestSuperMethods(getter)) {
+				for (PsiMethod method : ShuffleAction.findDeepestSuperMethods(methodHierarchy, getter)) {
 					if (method instanceof PsiCompiledElement) {
 						getter = null;
 						break;
@@ -101,7 +114,7 @@ public class SilentRenameJavaVariableProcessor extends RenameJavaVariableProcess
 			else if (newSetterParameterName.equals(setter.getParameterList().getParameters()[0].getName())) {
 				shouldRenameSetterParameter = false;
 			} else {
-				for (PsiMethod method : ShuffleAction.findDeepestSuperMethods(setter)) {
+				for (PsiMethod method : ShuffleAction.findDeepestSuperMethods(methodHierarchy, setter)) {
 					if (method instanceof PsiCompiledElement) {
 						setter = null;
 						shouldRenameSetterParameter = false;
@@ -139,27 +152,27 @@ public class SilentRenameJavaVariableProcessor extends RenameJavaVariableProcess
 		if (getter != null) {
 			String newGetterName = "get"+ StringUtils.capitalize(newName);
 			PsiClass clazz = getter.getContainingClass();
-			PsiMethod[] collisions = clazz.findMethodsByName(newGetterName,true);
+			Collection<PsiMethod> collisions = findMethodsByName(clazz, newGetterName);
 			for (PsiMethod method: collisions) {
 				if (!ShuffleAction.isCollidingSignature(getter, method, true) && !getter.equals(method)) {
 					return true;
 				}
 			}
 
-			superGetters = ShuffleAction.findDeepestSuperMethods(getter);
+			superGetters = ShuffleAction.findDeepestSuperMethods(methodHierarchy, getter);
 		}
 
 		PsiMethod[] superSetters = null;
 		if (setter != null) {
 			String newSetterName = "set"+ StringUtils.capitalize(newName);
 			PsiClass clazz = setter.getContainingClass();
-			PsiMethod[] collisions = clazz.findMethodsByName(newSetterName,true);
+			Collection<PsiMethod> collisions = findMethodsByName(clazz, newSetterName);
 			for (PsiMethod method: collisions) {
 				if (!ShuffleAction.isCollidingSignature(setter, method, true) && !setter.equals(method)) {
 					return true;
 				}
 			}
-			superSetters = ShuffleAction.findDeepestSuperMethods(setter);
+			superSetters = ShuffleAction.findDeepestSuperMethods(methodHierarchy, setter);
 		}
 
 		return !(renameGettersAndSetters
@@ -167,16 +180,20 @@ public class SilentRenameJavaVariableProcessor extends RenameJavaVariableProcess
 				 && (superSetters == null || superSetters.length == 0));
 	}
 
-	private static void addOverriddenAndImplemented(PsiMethod methodPrototype, final String newName, final Map<PsiElement, String> allRenames) {
+	private Collection<PsiMethod> findMethodsByName(PsiClass clazz, String name) {
+		if (occupancyIndex != null) {
+			return occupancyIndex.methodsNamed(clazz, name, true);
+		}
+		return Arrays.asList(clazz.findMethodsByName(name, true));
+	}
+
+	private void addOverriddenAndImplemented(PsiMethod methodPrototype, final String newName, final Map<PsiElement, String> allRenames) {
 		allRenames.put(methodPrototype, newName);
-		for (PsiMethod method : ShuffleAction.findDeepestSuperMethods(methodPrototype)) {
-			OverridingMethodsSearch.search(method).forEach(new Processor<PsiMethod>() {
-				public boolean process(PsiMethod psiMethod) {
-					assertNonCompileElement(psiMethod);
-					allRenames.put(psiMethod, newName);
-					return true;
-				}
-			});
+		for (PsiMethod method : ShuffleAction.findDeepestSuperMethods(methodHierarchy, methodPrototype)) {
+			for (PsiMethod psiMethod : ShuffleAction.findOverridingMethods(methodHierarchy, method)) {
+				assertNonCompileElement(psiMethod);
+				allRenames.put(psiMethod, newName);
+			}
 			allRenames.put(method, newName);
 		}
 	}
@@ -21,6 +21,7 @@ package com.intellij.refactoring.rename;
 import com.intellij.openapi.command.UndoConfirmationPolicy;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.TextRange;
 import com.intellij.openapi.util.Ref;
 import com.intellij.psi.*;
 import com.intellij.psi.impl.source.tree.injected.InjectedLanguageUtil;
@@ -31,6 +32,7 @@ import com.intellij.refactoring.listeners.impl.RefactoringTransaction;
 import com.intellij.refactoring.rename.naming.AutomaticRenamer;
 import com.intellij.refactoring.ui.ConflictsDialog;
 import com.intellij.refactoring.util.CommonRefactoringUtil;
+import com.intellij.refactoring.util.MoveRenameUsageInfo;
 import com.intellij.usageView.UsageInfo;
 import com.intellij.usageView.UsageViewDescriptor;
 import com.intellij.usageView.UsageViewUtil;
@@ -38,11 +40,25 @@ import com.intellij.util.containers.*;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import su.opencode.shuffler.MethodHierarchy;
+import su.opencode.shuffler.NameOccupancyIndex;
+import su.opencode.shuffler.ReferenceIndex;
+import su.opencode.shuffler.RenameRecords;
 import su.opencode.shuffler.ShuffleAction;
+import su.opencode.shuffler.ShuffleEvents;
+import su.opencode.shuffler.ShuffleMetrics;
+import su.opencode.shuffler.core.RenameRecord;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /*
@@ -52,6 +68,18 @@ public class SilentRenameProcessor extends RenameProcessor {
 
 	private PsiElement myPrimaryElement;
 	private String myNewName;
+	private ReferenceIndex referenceIndex;
+	private NameOccupancyIndex occupancyIndex;
+	private MethodHierarchy methodHierarchy;
+	private ShuffleMetrics metrics;
+	// modification stamps of files seen by prepare(), plan is stale once any of them changes
+	private Map<PsiFile, Long> preparedStamps;
+	// java structure modification count at prepare(), any later rename may have taken a clashing name
+	private long preparedStructureCount;
+	// entries prepareRenaming added for an element, e.g. accessors of a field or overriders of a method
+	private Map<PsiElement, List<PsiElement>> addedEntries = new HashMap<PsiElement, List<PsiElement>>();
+	// records of added entries, requested ones are recorded by their caller
+	private Collection<RenameRecord> renameRecords;
 
 	public SilentRenameProcessor(Project project, PsiElement element, @NotNull @NonNls String newName,
 								 boolean isSearchInComments, boolean isSearchTextOccurrences) {
@@ -60,48 +88,312 @@ public class SilentRenameProcessor extends RenameProcessor {
 		this.myNewName = newName;
 	}
 
+	public void setReferenceIndex(ReferenceIndex referenceIndex) {
+		this.referenceIndex = referenceIndex;
+	}
+
+	public void setOccupancyIndex(NameOccupancyIndex occupancyIndex) {
+		this.occupancyIndex = occupancyIndex;
+	}
+
+	public void setMethodHierarchy(MethodHierarchy methodHierarchy) {
+		this.methodHierarchy = methodHierarchy;
+	}
+
+	public void setMetrics(ShuffleMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public void setRenameRecords(Collection<RenameRecord> renameRecords) {
+		this.renameRecords = renameRecords;
+	}
+
+	private void time(String phase, long began) {
+		if (metrics != null) {
+			metrics.time(phase, began);
+		}
+	}
+
+	private void reject(String reason) {
+		if (metrics != null) {
+			metrics.reject(reason);
+		}
+	}
+
+	/*
+	 * Takes usages from reference index, elements not covered by the index are searched as usual.
+	 */
+	@NotNull
+	@Override
+	public UsageInfo[] findUsages() {
+		long began = System.nanoTime();
+		try {
+			return searchUsages();
+		} finally {
+			time("usageSearch", began);
+		}
+	}
+
+	private UsageInfo[] searchUsages() {
+		if (referenceIndex == null) {
+			return super.findUsages();
+		}
+
+		List<UsageInfo> result = new ArrayList<UsageInfo>();
+		for (Map.Entry<PsiElement, String> entry : new ArrayList<Map.Entry<PsiElement, String>>(myAllRenames.entrySet())) {
+			PsiElement element = entry.getKey();
+			String newName = entry.getValue();
+			if (!referenceIndex.covers(element)) {
+				result.addAll(Arrays.asList(RenameUtil.findUsages(element, newName, isSearchInComments(),
+																  isSearchTextOccurrences(), myAllRenames)));
+				continue;
+			}
+
+			for (PsiReference reference : referenceIndex.getUsages(element)) {
+				TextRange range = reference.getRangeInElement();
+				result.add(new MoveRenameUsageInfo(reference.getElement(), reference, range.getStartOffset(),
+												   range.getEndOffset(), element, false));
+			}
+			RenamePsiElementProcessor.forElement(element).findCollisions(element, newName, myAllRenames, result);
+		}
+		return result.toArray(new UsageInfo[result.size()]);
+	}
+
+	@Override
+	public void prepareRenaming(@NotNull PsiElement element, String newName, LinkedHashMap<PsiElement, String> allRenames) {
+		Set<PsiElement> before = new HashSet<PsiElement>(allRenames.keySet());
+		super.prepareRenaming(element, newName, allRenames);
+		for (PsiElement added : allRenames.keySet()) {
+			if (before.contains(added)) continue;
+			List<PsiElement> entries = addedEntries.get(element);
+			if (entries == null) {
+				entries = new ArrayList<PsiElement>();
+				addedEntries.put(element, entries);
+			}
+			entries.add(added);
+		}
+	}
+
+	@Override
+	public void doRun() {
+		// base processor prepares only primary element, batch entries added by addElement need it too
+		for (Map.Entry<PsiElement, String> entry : new ArrayList<Map.Entry<PsiElement, String>>(myAllRenames.entrySet())) {
+			if (entry.getKey() == myPrimaryElement || !entry.getKey().isValid()) continue;
+			prepareRenaming(entry.getKey(), entry.getValue(), myAllRenames);
+		}
+		super.doRun();
+	}
+
+	/*
+	 * Analysis part of the refactoring, needs only read access:
+	 * prepares every entry, finds usages and drops conflicting entries.
+	 * Result is applied later by {@link #apply}, if nothing touched the files in between.
+	 *
+	 * @return usages to apply, or null if nothing can be renamed
+	 */
+	@Nullable
+	public UsageInfo[] prepare() {
+		for (Map.Entry<PsiElement, String> entry : new ArrayList<Map.Entry<PsiElement, String>>(myAllRenames.entrySet())) {
+			if (!entry.getKey().isValid()) continue;
+			prepareRenaming(entry.getKey(), entry.getValue(), myAllRenames);
+		}
+
+		Ref<UsageInfo[]> usages = Ref.create(findUsages());
+		if (!preprocessUsages(usages)) {
+			return null;
+		}
+
+		preparedStructureCount = structureCount();
+		preparedStamps = new HashMap<PsiFile, Long>();
+		for (UsageInfo usage : usages.get()) {
+			stamp(usage.getFile());
+		}
+		for (PsiElement element : myAllRenames.keySet()) {
+			stamp(element.getContainingFile());
+		}
+		return usages.get();
+	}
+
+	private void stamp(PsiFile file) {
+		if (file != null && !preparedStamps.containsKey(file)) {
+			preparedStamps.put(file, file.getModificationStamp());
+		}
+	}
+
+	/*
+	 * @return true if some element or file seen by prepare() has changed since
+	 */
+	public boolean isStale() {
+		if (preparedStamps == null) return true;
+		for (PsiElement element : myAllRenames.keySet()) {
+			if (!element.isValid()) return true;
+		}
+		for (Map.Entry<PsiFile, Long> entry : preparedStamps.entrySet()) {
+			PsiFile file = entry.getKey();
+			if (!file.isValid() || file.getModificationStamp() != entry.getValue()) return true;
+		}
+		return false;
+	}
+
+	private long structureCount() {
+		return PsiManager.getInstance(myProject).getModificationTracker().getJavaStructureModificationCount();
+	}
+
+	/*
+	 * Write part of the refactoring, should be called in write action.
+	 * Files of the plan are unchanged, but writes to other files may have made new names clash,
+	 * so conflicts are checked once again if anything was changed since prepare().
+	 *
+	 * @return false if plan got stale or all entries got conflicts, and nothing was changed
+	 */
+	public boolean apply(UsageInfo[] usages) {
+		if (usages == null || isStale()) return false;
+		if (structureCount() != preparedStructureCount) {
+			Ref<UsageInfo[]> refUsages = Ref.create(usages);
+			if (!preprocessUsages(refUsages)) return false;
+			usages = refUsages.get();
+		}
+		execute(usages);
+		return true;
+	}
+
+	/*
+	 * Checks every element of the batch separately.
+	 * Entries with conflicts are dropped from the batch together with their usages,
+	 * whole batch is rejected if conflict can't be attributed to a single entry.
+	 */
 	@Override
 	public boolean preprocessUsages(Ref<UsageInfo[]> refUsages) {
+		ShuffleEvents.ConflictCheckEvent event = ShuffleEvents.beginConflictCheck();
+		long began = System.nanoTime();
+		int elements = myAllRenames.size();
+		boolean accepted = false;
+		try {
+			accepted = checkConflicts(refUsages);
+			return accepted;
+		} finally {
+			time("conflictCheck", began);
+			ShuffleEvents.commitConflictCheck(event, myPrimaryElement, elements, elements - myAllRenames.size(),
+											  refUsages.get().length, accepted);
+		}
+	}
+
+	private boolean checkConflicts(Ref<UsageInfo[]> refUsages) {
 		UsageInfo[] usagesIn = refUsages.get();
-		MultiMap<PsiElement, String> conflicts = new MultiMap<PsiElement, String>();
+		Set<PsiElement> rejected = new HashSet<PsiElement>();
 
-		RenameUtil.addConflictDescriptions(usagesIn, conflicts);
-		RenamePsiElementProcessor.forElement(myPrimaryElement).findExistingNameConflicts(myPrimaryElement, myNewName, conflicts);
-		if (!conflicts.isEmpty()) {
-			return false;
+		for (UsageInfo usageInfo: usagesIn) {
+			if (usageInfo instanceof CollisionUsageInfo || usageInfo instanceof UnresolvableCollisionUsageInfo) {
+				PsiElement referenced = getReferencedElement(usageInfo);
+				if (referenced == null || !myAllRenames.containsKey(referenced)) {
+					reject("unattributedCollision");
+					return false;
+				}
+				if (rejected.add(referenced)) {
+					reject("collision");
+				}
+			}
 		}
 
-		for (UsageInfo usageInfo: usagesIn) {
-			if (usageInfo instanceof CollisionUsageInfo) {
+		for (Map.Entry<PsiElement, String> entry : myAllRenames.entrySet()) {
+			if (rejected.contains(entry.getKey())) continue;
+			String conflict = conflictReason(entry.getKey(), entry.getValue());
+			if (conflict != null) {
+				reject(conflict);
+				rejected.add(entry.getKey());
+			}
+		}
+
+		rejectAddedEntries(rejected);
+
+		if (!rejected.isEmpty()) {
+			for (PsiElement element : rejected) {
+				myAllRenames.remove(element);
+			}
+			if (myAllRenames.isEmpty()) {
+				return false;
+			}
+
+			List<UsageInfo> usagesOut = new ArrayList<UsageInfo>(usagesIn.length);
+			for (UsageInfo usageInfo : usagesIn) {
+				if (!rejected.contains(getReferencedElement(usageInfo))) {
+					usagesOut.add(usageInfo);
+				}
+			}
+			refUsages.set(usagesOut.toArray(new UsageInfo[usagesOut.size()]));
+		}
+
+		prepareSuccessful();
+		for (PsiElement element : myAllRenames.keySet()) {
+			if (!canRename(myProject, null, element)) {
+				reject("notRenameable");
 				return false;
 			}
 		}
+		return true;
+	}
+
+	// entries added for a rejected element go with it, accessors renamed without their field would get out of sync
+	private void rejectAddedEntries(Set<PsiElement> rejected) {
+		Deque<PsiElement> queue = new ArrayDeque<PsiElement>(rejected);
+		while (!queue.isEmpty()) {
+			List<PsiElement> entries = addedEntries.get(queue.poll());
+			if (entries == null) continue;
+			for (PsiElement entry : entries) {
+				if (myAllRenames.containsKey(entry) && rejected.add(entry)) {
+					reject("ownerRejected");
+					queue.add(entry);
+				}
+			}
+		}
+	}
+
+	/*
+	 * @return reason the element can't get the new name, or null if there is no conflict
+	 */
+	private String conflictReason(PsiElement element, String newName) {
+		MultiMap<PsiElement, String> conflicts = new MultiMap<PsiElement, String>();
+		RenamePsiElementProcessor.forElement(element).findExistingNameConflicts(element, newName, conflicts);
+		if (!conflicts.isEmpty()) {
+			return "existingName";
+		}
 
-		if (myPrimaryElement instanceof PsiVariable) {
-			PsiMethod method = ShuffleAction.findRootPsiByType(myPrimaryElement, PsiMethod.class);
+		if (element instanceof PsiVariable) {
+			PsiMethod method = ShuffleAction.findRootPsiByType(element, PsiMethod.class);
 			if (method != null) {
-				Set<PsiVariable> vars = ShuffleAction.findChildren(method, myNewName, PsiVariable.class);
+				Collection<PsiVariable> vars = occupancyIndex != null
+											   ? occupancyIndex.variablesNamed(method, newName)
+											   : ShuffleAction.findChildren(method, newName, PsiVariable.class);
 				for (PsiVariable var : vars) {
-					if (!myPrimaryElement.isEquivalentTo(var)) {
-						return false;
+					if (!element.isEquivalentTo(var)) {
+						return "variableClash";
 					}
 				}
 			}
 		}
 
-		if (myPrimaryElement instanceof PsiMethod) {
-			PsiClass psiClass = ShuffleAction.findParentPsiByType(myPrimaryElement, PsiClass.class);
-			Set<PsiMethod> methods = ShuffleAction.findChildren(psiClass, myNewName, PsiMethod.class);
+		if (element instanceof PsiMethod) {
+			PsiClass psiClass = ShuffleAction.findParentPsiByType(element, PsiClass.class);
+			Collection<PsiMethod> methods = occupancyIndex != null && psiClass != null
+											? occupancyIndex.methodsNamed(psiClass, newName, false)
+											: ShuffleAction.findChildren(psiClass, newName, PsiMethod.class);
 			for (PsiMethod method: methods){
-				if (!myPrimaryElement.equals(method) && ShuffleAction.isCollidingSignature((PsiMethod)myPrimaryElement,
-																						   method, true)) {
-					return false;
+				if (!element.equals(method) && ShuffleAction.isCollidingSignature((PsiMethod)element, method, true)) {
+					return "methodClash";
 				}
 			}
 		}
+		return null;
+	}
 
-		prepareSuccessful();
-		return canRename(myProject, null, myPrimaryElement);
+	private static PsiElement getReferencedElement(UsageInfo usageInfo) {
+		if (usageInfo instanceof MoveRenameUsageInfo) {
+			return ((MoveRenameUsageInfo)usageInfo).getReferencedElement();
+		}
+		if (usageInfo instanceof UnresolvableCollisionUsageInfo) {
+			return ((UnresolvableCollisionUsageInfo)usageInfo).getReferencedElement();
+		}
+		return null;
 	}
 
 	@Override
@@ -111,7 +403,83 @@ public class SilentRenameProcessor extends RenameProcessor {
 
 	@Override
 	public void execute(UsageInfo[] usages) {
-		super.execute(usages);
+		Map<PsiElement, RenameRecord> records = addedRecords();
+		if (referenceIndex == null && occupancyIndex == null) {
+			write(usages);
+		} else {
+			writeIndexed(usages);
+		}
+		recordLanded(records);
+	}
+
+	// taken before write, owners of added entries may be renamed by the same batch
+	private Map<PsiElement, RenameRecord> addedRecords() {
+		Map<PsiElement, RenameRecord> records = new LinkedHashMap<PsiElement, RenameRecord>();
+		if (renameRecords == null) return records;
+		for (List<PsiElement> entries : addedEntries.values()) {
+			for (PsiElement entry : entries) {
+				if (!myAllRenames.containsKey(entry) || !entry.isValid()) continue;
+				RenameRecord record = RenameRecords.of(entry);
+				if (record != null) {
+					records.put(entry, record);
+				}
+			}
+		}
+		return records;
+	}
+
+	private void recordLanded(Map<PsiElement, RenameRecord> records) {
+		for (Map.Entry<PsiElement, RenameRecord> entry : records.entrySet()) {
+			PsiElement element = entry.getKey();
+			String newName = myAllRenames.get(element);
+			if (element.isValid() && newName != null && newName.equals(((PsiNamedElement)element).getName())) {
+				renameRecords.add(entry.getValue().withNewName(newName));
+			}
+		}
+	}
+
+	private void writeIndexed(UsageInfo[] usages) {
+		// references may be replaced by renaming, so every touched file is indexed again
+		Set<PsiFile> files = new HashSet<PsiFile>();
+		for (UsageInfo usage : usages) {
+			if (usage.getFile() != null) {
+				files.add(usage.getFile());
+			}
+		}
+		Map<PsiElement, String> oldNames = new LinkedHashMap<PsiElement, String>();
+		for (PsiElement element : myAllRenames.keySet()) {
+			if (element.getContainingFile() != null) {
+				files.add(element.getContainingFile());
+			}
+			if (element instanceof PsiNamedElement) {
+				oldNames.put(element, ((PsiNamedElement)element).getName());
+			}
+		}
+
+		write(usages);
+
+		if (referenceIndex != null) {
+			referenceIndex.reindex(files);
+		}
+		if (occupancyIndex != null) {
+			for (Map.Entry<PsiElement, String> entry : oldNames.entrySet()) {
+				PsiElement element = entry.getKey();
+				if (element.isValid()) {
+					occupancyIndex.renamed(element, entry.getValue(), ((PsiNamedElement)element).getName());
+				} else {
+					occupancyIndex.invalidate(element);
+				}
+			}
+		}
+	}
+
+	private void write(UsageInfo[] usages) {
+		long began = System.nanoTime();
+		try {
+			super.execute(usages);
+		} finally {
+			time("psiWrite", began);
+		}
 	}
 
 	@NotNull
@@ -198,7 +566,9 @@ public class SilentRenameProcessor extends RenameProcessor {
 		myForceShowPreview = false;
 		for (RenamePsiElementProcessor processor : processors) {
 			if (processor instanceof RenameJavaVariableProcessor){
-				processor = SilentRenameJavaVariableProcessor.INSTANCE;
+				processor = occupancyIndex != null || methodHierarchy != null
+							? new SilentRenameJavaVariableProcessor(occupancyIndex, methodHierarchy)
+							: SilentRenameJavaVariableProcessor.INSTANCE;
 			}
 
 			if (processor.canProcessElement(element)) {
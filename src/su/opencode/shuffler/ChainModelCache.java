@@ -0,0 +1,276 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import su.opencode.shuffler.core.ChainModel;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Markov chains persisted between shuffles in project's system directory.
+ * Besides total counts it keeps names contributed by every file, keyed by file url and content hash,
+ * so only changed files have to be walked: their old names are subtracted and new ones added.
+ */
+public class ChainModelCache {
+
+	private static final Logger LOG = Logger.getLogger(ChainModelCache.class.getName());
+
+	private static final int VERSION = 1;
+
+	private File       file;
+	private boolean    localsOnly;
+	private ChainModel variableChain = new ChainModel();
+	private ChainModel classChain    = new ChainModel();
+	private ChainModel methodChain   = new ChainModel();
+
+	private Map<String, FileEntry> entries = new ConcurrentHashMap<String, FileEntry>();
+
+	private ChainModelCache(File file, boolean localsOnly) {
+		this.file = file;
+		this.localsOnly = localsOnly;
+	}
+
+	public static File storageDirectory(Project project) {
+		return new File(new File(PathManager.getSystemPath(), "shuffler"),
+						project.getName() + "." + project.getLocationHash());
+	}
+
+	/*
+	 * @return cached chains or empty cache if there is no cache yet or it was built in other mode
+	 */
+	public static ChainModelCache load(Project project, boolean localsOnly) {
+		ChainModelCache cache = new ChainModelCache(new File(storageDirectory(project), "chains.bin"), localsOnly);
+		if (!cache.file.isFile()) return cache;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(cache.file), 1 << 16));
+			if (in.readInt() != VERSION || in.readBoolean() != localsOnly) {
+				return cache;
+			}
+			cache.variableChain = ChainModel.read(in);
+			cache.classChain = ChainModel.read(in);
+			cache.methodChain = ChainModel.read(in);
+
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String url = in.readUTF();
+				cache.entries.put(url, FileEntry.read(in));
+			}
+			return cache;
+		} catch (IOException ex) {
+			LOG.log(Level.WARNING, "Failed to load chain cache " + cache.file + ", chains will be rebuilt", ex);
+			return new ChainModelCache(cache.file, localsOnly);
+		} finally {
+			close(in);
+		}
+	}
+
+	public void save() {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			file.getParentFile().mkdirs();
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+			out.writeInt(VERSION);
+			out.writeBoolean(localsOnly);
+			variableChain.write(out);
+			classChain.write(out);
+			methodChain.write(out);
+
+			out.writeInt(entries.size());
+			for (Map.Entry<String, FileEntry> entry : entries.entrySet()) {
+				out.writeUTF(entry.getKey());
+				entry.getValue().write(out);
+			}
+			out.close();
+			out = null;
+
+			if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+				throw new IOException("Can't replace " + file);
+			}
+		} catch (IOException ex) {
+			LOG.log(Level.WARNING, "Failed to save chain cache " + file, ex);
+			tmp.delete();
+		} finally {
+			close(out);
+		}
+	}
+
+	/*
+	 * Checks file against cached entry, content is read only if file was touched since last check.
+	 *
+	 * @return null if cached names of the file are still valid, new entry without names otherwise
+	 */
+	public FileEntry checkFile(VirtualFile virtualFile) throws IOException {
+		FileEntry cached = entries.get(virtualFile.getUrl());
+		long timestamp = virtualFile.getTimeStamp();
+		long length = virtualFile.getLength();
+		if (cached != null && cached.timestamp == timestamp && cached.length == length) {
+			return null;
+		}
+
+		long hash = hash(virtualFile.contentsToByteArray());
+		if (cached != null && cached.hash == hash) {
+			cached.timestamp = timestamp;
+			cached.length = length;
+			return null;
+		}
+		return new FileEntry(timestamp, length, hash);
+	}
+
+	/*
+	 * Replaces contribution of changed files.
+	 * Old names of changed and no longer present files are subtracted,
+	 * new counts of changed files come already aggregated in {@code changedChains}.
+	 */
+	public void update(Map<String, FileEntry> changed, Set<String> present, MarkovBuildingVisitor changedChains) {
+		for (Iterator<Map.Entry<String, FileEntry>> i = entries.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry<String, FileEntry> entry = i.next();
+			boolean removed = !present.contains(entry.getKey());
+			if (removed || changed.containsKey(entry.getKey())) {
+				subtract(entry.getValue().names);
+				if (removed) i.remove();
+			}
+		}
+		entries.putAll(changed);
+
+		variableChain.merge(changedChains.getVariableChain());
+		classChain.merge(changedChains.getClassChain());
+		methodChain.merge(changedChains.getMethodChain());
+	}
+
+	private void subtract(FileNames names) {
+		for (String name : names.variableNames) {
+			variableChain.add(name, -1);
+		}
+		for (String name : names.classNames) {
+			classChain.add(name, -1);
+		}
+		for (String name : names.methodNames) {
+			methodChain.add(name, -1);
+		}
+	}
+
+	public ChainModel getVariableChain() {
+		return variableChain;
+	}
+
+	public ChainModel getClassChain() {
+		return classChain;
+	}
+
+	public ChainModel getMethodChain() {
+		return methodChain;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	// 64-bit FNV-1a
+	static long hash(byte[] bytes) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : bytes) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private static void close(Closeable closeable) {
+		if (closeable == null) return;
+		try {
+			closeable.close();
+		} catch (IOException ex) {
+			LOG.log(Level.FINE, "Failed to close chain cache stream", ex);
+		}
+	}
+
+	public static class FileNames {
+		public final List<String> classNames    = new ArrayList<String>();
+		public final List<String> methodNames   = new ArrayList<String>();
+		public final List<String> variableNames = new ArrayList<String>();
+
+		private void write(DataOutput out) throws IOException {
+			write(out, classNames);
+			write(out, methodNames);
+			write(out, variableNames);
+		}
+
+		private static void write(DataOutput out, List<String> names) throws IOException {
+			out.writeInt(names.size());
+			for (String name : names) {
+				out.writeUTF(name);
+			}
+		}
+
+		private static FileNames read(DataInput in) throws IOException {
+			FileNames names = new FileNames();
+			read(in, names.classNames);
+			read(in, names.methodNames);
+			read(in, names.variableNames);
+			return names;
+		}
+
+		private static void read(DataInput in, List<String> names) throws IOException {
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				names.add(in.readUTF());
+			}
+		}
+	}
+
+	public static class FileEntry {
+		private long      timestamp;
+		private long      length;
+		private long      hash;
+		private FileNames names = new FileNames();
+
+		private FileEntry(long timestamp, long length, long hash) {
+			this.timestamp = timestamp;
+			this.length = length;
+			this.hash = hash;
+		}
+
+		public FileNames getNames() {
+			return names;
+		}
+
+		private void write(DataOutput out) throws IOException {
+			out.writeLong(timestamp);
+			out.writeLong(length);
+			out.writeLong(hash);
+			names.write(out);
+		}
+
+		private static FileEntry read(DataInput in) throws IOException {
+			FileEntry entry = new FileEntry(in.readLong(), in.readLong(), in.readLong());
+			entry.names = FileNames.read(in);
+			return entry;
+		}
+	}
+}
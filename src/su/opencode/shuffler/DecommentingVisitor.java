@@ -21,11 +21,18 @@ package su.opencode.shuffler;
 import com.intellij.openapi.application.Application;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.command.CommandProcessor;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.*;
 import com.intellij.psi.impl.source.tree.TreeElement;
 import com.intellij.psi.javadoc.PsiDocComment;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.logging.Logger;
 
@@ -61,11 +68,66 @@ public class DecommentingVisitor extends JavaRecursiveElementWalkingVisitor {
         }
     }
 
+    /*
+     * Comments of the file are removed with a single document change,
+     * so PSI is reparsed once instead of being rebalanced after every delete.
+     */
     @Override
     public void visitFile(PsiFile file) {
-        super.visitFile(file);
-        processor.executeCommand(file.getProject(), new DecommentCommand(new Decommenter(comments)), "", "");
-        file.subtreeChanged();
+        PsiDocumentManager documentManager = PsiDocumentManager.getInstance(file.getProject());
+        Document document = documentManager.getDocument(file);
+        if (document == null) return;
+
+        // offsets of comments should match the document
+        documentManager.doPostponedOperationsAndUnblockDocument(document);
+        documentManager.commitDocument(document);
+
+        ShuffleEvents.DecommentEvent event = ShuffleEvents.beginDecomment();
+        String outcome = "failed";
+        try {
+            super.visitFile(file);
+            if (comments.isEmpty()) {
+                outcome = "none";
+                return;
+            }
+
+            processor.executeCommand(file.getProject(),
+                                     new DecommentCommand(new Decommenter(document, ranges(comments))), "", "");
+            documentManager.commitDocument(document);
+            outcome = "removed";
+        } finally {
+            comments.clear();
+            VirtualFile virtualFile = file.getVirtualFile();
+            ShuffleEvents.commitDecomment(event, virtualFile != null ? virtualFile.getPath() : file.getName(), "psi", outcome);
+        }
+    }
+
+    // sorted by offset, overlapping and adjacent ranges are merged
+    private static List<TextRange> ranges(Set<PsiComment> comments) {
+        List<TextRange> sorted = new ArrayList<TextRange>(comments.size());
+        for (PsiComment comment : comments) {
+            if (comment instanceof TreeElement && ((TreeElement) comment).getTreeParent() == null) continue;
+            sorted.add(comment.getTextRange());
+        }
+        Collections.sort(sorted, new Comparator<TextRange>() {
+            @Override
+            public int compare(TextRange o1, TextRange o2) {
+                return o1.getStartOffset() - o2.getStartOffset();
+            }
+        });
+
+        List<TextRange> merged = new ArrayList<TextRange>(sorted.size());
+        for (TextRange range : sorted) {
+            int last = merged.size() - 1;
+            if (last >= 0 && merged.get(last).getEndOffset() >= range.getStartOffset()) {
+                TextRange previous = merged.get(last);
+                merged.set(last, new TextRange(previous.getStartOffset(),
+                                               Math.max(previous.getEndOffset(), range.getEndOffset())));
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
     }
 
     private class DecommentCommand implements Runnable {
@@ -82,22 +144,39 @@ public class DecommentingVisitor extends JavaRecursiveElementWalkingVisitor {
     }
 
     private static class Decommenter implements Runnable {
-        private Set<PsiComment> comments;
+        private Document        document;
+        private List<TextRange> ranges;
 
-        public Decommenter(Set<PsiComment> comments) {
-            this.comments = comments;
+        public Decommenter(Document document, List<TextRange> ranges) {
+            this.document = document;
+            this.ranges = ranges;
         }
 
+        /*
+         * Text between first and last comment is rebuilt without comments
+         * and replaced at once, so there is a single change event per file.
+         */
         @Override
         public void run() {
-            for (PsiComment comment: comments){
-                if (comment instanceof TreeElement) {
-                    if (((TreeElement) comment).getTreeParent() == null) {
-                        continue;
-                    }
+            if (ranges.isEmpty()) return;
+            int start = ranges.get(0).getStartOffset();
+            int end = ranges.get(ranges.size() - 1).getEndOffset();
+            if (end > document.getTextLength()) return;
+
+            CharSequence text = document.getCharsSequence();
+            StringBuilder sb = new StringBuilder(end - start);
+            int offset = start;
+            for (TextRange range : ranges) {
+                sb.append(text, offset, range.getStartOffset());
+                // comment may be the only thing separating two tokens, same guard as in LexerDecommenter.strip
+                if (range.getStartOffset() > 0 && range.getEndOffset() < text.length()
+                    && !Character.isWhitespace(text.charAt(range.getStartOffset() - 1))
+                    && !Character.isWhitespace(text.charAt(range.getEndOffset()))) {
+                    sb.append(' ');
                 }
-                comment.delete();
+                offset = range.getEndOffset();
             }
+            document.replaceString(start, end, sb.toString());
         }
     }
 }
@@ -0,0 +1,101 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/*
+ * Ignore-marker annotation rules compiled into a character trie.
+ * Rule is either exact qualified name or package prefix ending with ".*",
+ * names are matched by walking their characters once, without splitting.
+ */
+public class IgnoreMarkerMatcher {
+
+	private final Node root = new Node();
+
+	public IgnoreMarkerMatcher(Collection<String> rules) {
+		for (String rule : rules) {
+			add(rule);
+		}
+	}
+
+	private void add(String rule) {
+		boolean wildcard = rule.endsWith(".*");
+		String path = wildcard ? rule.substring(0, rule.length() - 1) : rule;
+		Node node = root;
+		for (int i = 0; i < path.length(); i++) {
+			node = node.child(path.charAt(i), true);
+		}
+		if (wildcard) {
+			node.wildcard = true;
+		} else {
+			node.exact = true;
+		}
+	}
+
+	/*
+	 * @return true if name equals some rule or lies in some ignored package
+	 */
+	public boolean matches(CharSequence name) {
+		if (name == null) return false;
+		Node node = root;
+		for (int i = 0; i < name.length(); i++) {
+			node = node.child(name.charAt(i), false);
+			if (node == null) return false;
+			if (node.wildcard) return true;
+		}
+		if (node.exact) return true;
+		// package name itself is covered by its own wildcard
+		Node dot = node.child('.', false);
+		return dot != null && dot.wildcard;
+	}
+
+	private static class Node {
+		private static final char[] NO_LABELS = new char[0];
+		private static final Node[] NO_NODES  = new Node[0];
+
+		// sorted labels for binary search, rules are few and short so arrays stay tiny
+		private char[] labels = NO_LABELS;
+		private Node[] nodes  = NO_NODES;
+
+		private boolean exact;
+		private boolean wildcard;
+
+		private Node child(char c, boolean create) {
+			int i = Arrays.binarySearch(labels, c);
+			if (i >= 0) return nodes[i];
+			if (!create) return null;
+
+			int at = -i - 1;
+			char[] newLabels = new char[labels.length + 1];
+			Node[] newNodes = new Node[nodes.length + 1];
+			System.arraycopy(labels, 0, newLabels, 0, at);
+			System.arraycopy(nodes, 0, newNodes, 0, at);
+			System.arraycopy(labels, at, newLabels, at + 1, labels.length - at);
+			System.arraycopy(nodes, at, newNodes, at + 1, nodes.length - at);
+			Node node = new Node();
+			newLabels[at] = c;
+			newNodes[at] = node;
+			labels = newLabels;
+			nodes = newNodes;
+			return node;
+		}
+	}
+}
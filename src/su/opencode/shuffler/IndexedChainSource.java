@@ -0,0 +1,102 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.search.PsiShortNamesCache;
+
+/*
+ * Fills class, method and field chains straight from short name indexes,
+ * so declarations don't have to be parsed and walked.
+ * Every name is counted as many times as it's declared in the scope, names declared
+ * only outside of it, e.g. in compiled libraries, are not counted at all.
+ * Local variables and parameters are not indexed, they still have to be collected by walking PSI.
+ */
+public class IndexedChainSource {
+
+	private Project           project;
+	private GlobalSearchScope scope;
+
+	public IndexedChainSource(Project project, GlobalSearchScope scope) {
+		this.project = project;
+		this.scope = scope;
+	}
+
+	public void fill(MarkovBuildingVisitor chainBuilder, ProgressIndicator indicator) {
+		final PsiShortNamesCache cache = PsiShortNamesCache.getInstance(project);
+
+		for (final String name : allNames(new Computable<String[]>() {
+			@Override
+			public String[] compute() {
+				return cache.getAllClassNames();
+			}
+		})) {
+			chainBuilder.addClassName(name, count(new Computable<Integer>() {
+				@Override
+				public Integer compute() {
+					return cache.getClassesByName(name, scope).length;
+				}
+			}));
+			if (indicator != null) indicator.checkCanceled();
+		}
+
+		for (final String name : allNames(new Computable<String[]>() {
+			@Override
+			public String[] compute() {
+				return cache.getAllMethodNames();
+			}
+		})) {
+			chainBuilder.addMethodName(name, count(new Computable<Integer>() {
+				@Override
+				public Integer compute() {
+					return cache.getMethodsByName(name, scope).length;
+				}
+			}));
+			if (indicator != null) indicator.checkCanceled();
+		}
+
+		for (final String name : allNames(new Computable<String[]>() {
+			@Override
+			public String[] compute() {
+				return cache.getAllFieldNames();
+			}
+		})) {
+			chainBuilder.addVariableName(name, count(new Computable<Integer>() {
+				@Override
+				public Integer compute() {
+					return cache.getFieldsByName(name, scope).length;
+				}
+			}));
+			if (indicator != null) indicator.checkCanceled();
+		}
+	}
+
+	private static String[] allNames(Computable<String[]> names) {
+		return ApplicationManager.getApplication().runReadAction(names);
+	}
+
+	// read action is taken per name, so writers are not blocked for the whole index traversal
+	private static int count(Computable<Integer> counter) {
+		return ApplicationManager.getApplication().runReadAction(counter);
+	}
+}
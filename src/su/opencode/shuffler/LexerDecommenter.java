@@ -0,0 +1,191 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler;
+
+import com.intellij.lexer.JavaLexer;
+import com.intellij.lexer.Lexer;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.command.CommandProcessor;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.pom.java.LanguageLevel;
+import com.intellij.psi.JavaTokenType;
+import com.intellij.psi.tree.IElementType;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Removes line and block comments by streaming file text through java lexer, PSI is never built.
+ * Doc comments are kept, same as in DecommentingVisitor.
+ *
+ * Loaded documents are changed through the document in a command, same as in DecommentingVisitor,
+ * other files are rewritten through VFS, in both cases with a single change per file.
+ */
+public class LexerDecommenter {
+
+	private static final Logger LOG = Logger.getLogger(LexerDecommenter.class.getName());
+
+	private final Project       project;
+	private final LanguageLevel languageLevel;
+
+	public LexerDecommenter(Project project) {
+		this(project, LanguageLevel.HIGHEST);
+	}
+
+	public LexerDecommenter(Project project, LanguageLevel languageLevel) {
+		this.project = project;
+		this.languageLevel = languageLevel;
+	}
+
+	/*
+	 * @return number of files that had comments removed
+	 */
+	public int decomment(Collection<VirtualFile> files, ProgressIndicator indicator) {
+		int changed = 0;
+		for (VirtualFile file : files) {
+			if (indicator != null) {
+				if (indicator.isCanceled()) break;
+				indicator.setText2(file.getPresentableUrl());
+			}
+			try {
+				if (decomment(file)) changed++;
+			} catch (IOException ex) {
+				LOG.log(Level.WARNING, "Failed to decomment " + file.getName(), ex);
+			}
+		}
+		return changed;
+	}
+
+	/*
+	 * Text is read and stripped outside of write action, write action only replaces it.
+	 *
+	 * @return true if file had comments
+	 */
+	public boolean decomment(final VirtualFile file) throws IOException {
+		ShuffleEvents.DecommentEvent event = ShuffleEvents.beginDecomment();
+		String outcome = "failed";
+		try {
+			outcome = replaceText(file);
+			return "removed".equals(outcome);
+		} finally {
+			ShuffleEvents.commitDecomment(event, file.getPath(), "lexer", outcome);
+		}
+	}
+
+	/*
+	 * @return "removed", "none" if there were no comments, "stale" if document changed meanwhile
+	 *         or "skipped" if file can't be written
+	 */
+	private String replaceText(final VirtualFile file) throws IOException {
+		if (!file.isValid() || !file.isWritable()) return "skipped";
+
+		final Document document = cachedDocument(file);
+		final long stamp = document != null ? document.getModificationStamp() : 0;
+		final CharSequence text = document != null ? documentText(document) : VfsUtil.loadText(file);
+		final CharSequence stripped = strip(text);
+		if (stripped == null) return "none";
+
+		final boolean[] stale = new boolean[1];
+		final IOException[] failure = new IOException[1];
+		ShuffleAction.runInUI(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (document != null) {
+						// document could be changed while text was stripped
+						if (document.getModificationStamp() != stamp) {
+							stale[0] = true;
+							return;
+						}
+						CommandProcessor.getInstance().executeCommand(project, new Runnable() {
+							@Override
+							public void run() {
+								document.replaceString(0, document.getTextLength(), stripped);
+							}
+						}, "", "");
+					} else if (file.isValid()) {
+						file.setBinaryContent(stripped.toString().getBytes(file.getCharset().name()));
+					}
+				} catch (IOException ex) {
+					failure[0] = ex;
+				}
+			}
+		});
+		if (failure[0] != null) throw failure[0];
+		return stale[0] ? "stale" : "removed";
+	}
+
+	/*
+	 * @return text without line and block comments, or null if there were none
+	 */
+	public CharSequence strip(CharSequence text) {
+		Lexer lexer = new JavaLexer(languageLevel);
+		lexer.start(text);
+
+		StringBuilder sb = null;
+		int copied = 0;
+		IElementType type;
+		while ((type = lexer.getTokenType()) != null) {
+			if (type == JavaTokenType.END_OF_LINE_COMMENT || type == JavaTokenType.C_STYLE_COMMENT) {
+				if (sb == null) {
+					sb = new StringBuilder(text.length());
+				}
+				int start = lexer.getTokenStart();
+				int end = lexer.getTokenEnd();
+				sb.append(text, copied, start);
+				// comment may be the only thing separating two tokens
+				if (start > 0 && end < text.length()
+					&& !Character.isWhitespace(text.charAt(start - 1)) && !Character.isWhitespace(text.charAt(end))) {
+					sb.append(' ');
+				}
+				copied = end;
+			}
+			lexer.advance();
+		}
+		if (sb == null) return null;
+		sb.append(text, copied, text.length());
+		return sb;
+	}
+
+	private static Document cachedDocument(final VirtualFile file) {
+		return ApplicationManager.getApplication().runReadAction(new Computable<Document>() {
+			@Override
+			public Document compute() {
+				return FileDocumentManager.getInstance().getCachedDocument(file);
+			}
+		});
+	}
+
+	private static String documentText(final Document document) {
+		return ApplicationManager.getApplication().runReadAction(new Computable<String>() {
+			@Override
+			public String compute() {
+				return document.getText();
+			}
+		});
+	}
+}
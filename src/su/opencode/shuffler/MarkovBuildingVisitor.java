@@ -18,87 +18,214 @@
 */
 package su.opencode.shuffler;
 
-import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.ImmutableTable;
 import com.google.common.collect.Table;
 import com.intellij.psi.*;
-import org.apache.commons.lang.StringUtils;
+import com.intellij.psi.javadoc.PsiDocComment;
+import su.opencode.shuffler.core.ChainModel;
+import su.opencode.shuffler.core.CorpusModel;
+import su.opencode.shuffler.core.NameModel;
+import su.opencode.shuffler.core.NameSampler;
+import su.opencode.shuffler.core.TransitionCounts;
 
 import java.util.Comparator;
-import java.util.Map;
-import java.util.regex.Pattern;
 
 public class MarkovBuildingVisitor extends JavaRecursiveElementWalkingVisitor {
 
 	private static final double MODIFIER = 100;
 
-	private static final Pattern NON_ALPHA_PATTERN = Pattern.compile("[\\W_]");
+	private NameModel model = new NameModel();
 
-	private Table<String,String,Integer> variableTable = HashBasedTable.create();
-	private Table<String,String,Integer> classTable = HashBasedTable.create();
-	private Table<String,String,Integer> methodTable = HashBasedTable.create();
+	private boolean localsOnly = false;
 
-	private void processName(String s, Table<String, String, Integer> chainTable) {
-		if (StringUtils.isBlank(s)) return;
-		String[] parts = StringUtils.splitByCharacterTypeCamelCase(s);
+	private ChainModelCache.FileNames recorder;
 
-		String from = "";
-		String to = "";
+	// built lazily and dropped whenever chains change
+	private Table<String, String, Double> variableProbabilities;
+	private Table<String, String, Double> classProbabilities;
+	private Table<String, String, Double> methodProbabilities;
 
-		for (int i = 0; i <= parts.length; i++) {
-			to = (i == parts.length ? "" : parts[i].toLowerCase());
-			if (NON_ALPHA_PATTERN.matcher(to).find()) {
-				continue;
-			}
-			synchronized (chainTable) {
-				Integer counter = chainTable.get(from, to);
-				if (counter == null) {
-					counter = 1;
-				} else {
-					counter++;
-				}
-				chainTable.put(from, to, counter);
+	public MarkovBuildingVisitor() {
+	}
+
+	/*
+	 * @param localsOnly count only local variables and parameters,
+	 *                   when classes, methods and fields are taken from name indexes
+	 */
+	public MarkovBuildingVisitor(boolean localsOnly) {
+		this.localsOnly = localsOnly;
+	}
+
+	private void processName(String s, NameModel.Kind kind) {
+		processName(s, kind, 1);
+	}
+
+	private void processName(String s, NameModel.Kind kind, int count) {
+		if (count <= 0) return;
+		model.add(kind, s, count);
+		invalidate();
+
+		if (recorder != null && s != null) {
+			if (kind == NameModel.Kind.CLASS) {
+				recorder.classNames.add(s);
+			} else if (kind == NameModel.Kind.METHOD) {
+				recorder.methodNames.add(s);
+			} else {
+				recorder.variableNames.add(s);
 			}
-			from = to;
 		}
 	}
 
+	private void invalidate() {
+		variableProbabilities = null;
+		classProbabilities = null;
+		methodProbabilities = null;
+	}
+
+	/*
+	 * Visitor is not thread-safe, so every worker should count into its own instance
+	 * and merge results afterwards.
+	 */
+	public void merge(MarkovBuildingVisitor other) {
+		model.merge(other.model);
+		invalidate();
+	}
+
+	/*
+	 * Adds chains counted elsewhere, e.g. loaded from cache.
+	 */
+	public void merge(ChainModel variables, ChainModel classes, ChainModel methods) {
+		model.merge(variables, classes, methods);
+		invalidate();
+	}
+
+	/*
+	 * Adds prebuilt chains, counts are scaled by {@code weight}.
+	 */
+	public void blend(CorpusModel corpus, double weight) {
+		model.blend(corpus, weight);
+		invalidate();
+	}
+
+	public void blend(MarkovBuildingVisitor other, double weight) {
+		model.blend(other.model, weight);
+		invalidate();
+	}
+
+	/*
+	 * Also records every counted name, so contribution of a file can be subtracted later.
+	 */
+	public void setRecorder(ChainModelCache.FileNames recorder) {
+		this.recorder = recorder;
+	}
+
+	/*
+	 * Subtracts names recorded earlier, e.g. the part of a file counted before reading it failed.
+	 */
+	public void subtract(ChainModelCache.FileNames names) {
+		for (String name : names.classNames) {
+			model.add(NameModel.Kind.CLASS, name, -1);
+		}
+		for (String name : names.methodNames) {
+			model.add(NameModel.Kind.METHOD, name, -1);
+		}
+		for (String name : names.variableNames) {
+			model.add(NameModel.Kind.VARIABLE, name, -1);
+		}
+		invalidate();
+	}
+
+	public boolean isLocalsOnly() {
+		return localsOnly;
+	}
+
+	public void addClassName(String name, int count) {
+		processName(name, NameModel.Kind.CLASS, count);
+	}
+
+	public void addMethodName(String name, int count) {
+		processName(name, NameModel.Kind.METHOD, count);
+	}
+
+	public void addVariableName(String name, int count) {
+		processName(name, NameModel.Kind.VARIABLE, count);
+	}
+
+	/*
+	 * Parts of declarations below hold no names to count, so their PSI is not walked at all.
+	 * In locals only mode the declarations themselves come from name indexes,
+	 * only parameters and code bodies are walked.
+	 */
+	@Override
+	public void visitDocComment(PsiDocComment comment) {
+	}
+
+	@Override
+	public void visitImportList(PsiImportList list) {
+	}
+
+	@Override
+	public void visitPackageStatement(PsiPackageStatement statement) {
+	}
+
+	@Override
+	public void visitModifierList(PsiModifierList list) {
+	}
+
+	@Override
+	public void visitReferenceList(PsiReferenceList list) {
+	}
+
+	@Override
+	public void visitTypeElement(PsiTypeElement type) {
+	}
+
+	@Override
+	public void visitField(PsiField field) {
+		if (!localsOnly) {
+			super.visitField(field);
+			return;
+		}
+		PsiExpression initializer = field.getInitializer();
+		if (initializer != null) initializer.accept(this);
+	}
+
 	@Override
 	public void visitVariable(PsiVariable variable) {
 		super.visitVariable(variable);
-		processName(variable.getName(),variableTable);
+		if (localsOnly && variable instanceof PsiField) return;
+		processName(variable.getName(), NameModel.Kind.VARIABLE);
 	}
 
 	@Override
 	public void visitClass(PsiClass aClass) {
 		super.visitClass(aClass);
-		processName(aClass.getName(),classTable);
+		if (localsOnly) return;
+		processName(aClass.getName(), NameModel.Kind.CLASS);
 	}
 
 	@Override
 	public void visitMethod(PsiMethod method) {
+		if (localsOnly) {
+			method.getParameterList().accept(this);
+			PsiCodeBlock body = method.getBody();
+			if (body != null) body.accept(this);
+			return;
+		}
 		super.visitMethod(method);
-		processName(method.getName(),methodTable);
+		processName(method.getName(), NameModel.Kind.METHOD);
 	}
 
-	private Table<String, String, Double> probabilityTable(Table<String, String, Integer> chainTable) {
-
-		ImmutableTable.Builder<String, String, Double> builder = ImmutableTable.builder();
+	private Table<String, String, Double> probabilityTable(final ChainModel chain) {
 
-		for (Map.Entry<String, Map<String, Integer>> row : chainTable.rowMap().entrySet()) {
-			if (row.getValue().isEmpty()) continue;
+		final ImmutableTable.Builder<String, String, Double> builder = ImmutableTable.builder();
 
-			double total = 0;
-
-			for (Map.Entry<String, Integer> cell : row.getValue().entrySet()) {
-				total += cell.getValue();
+		chain.visit(new TransitionCounts.Visitor() {
+			@Override
+			public void visit(int from, int to, int count) {
+				builder.put(chain.token(from), chain.token(to), count / (double)chain.rowTotal(from));
 			}
-
-			for (Map.Entry<String, Integer> cell : row.getValue().entrySet()) {
-				double prob = cell.getValue() / total;
-				builder.put(row.getKey(), cell.getKey(), prob);
-			}
-		}
+		});
 
 		builder.orderRowsBy(StringComparator.INSTANCE);
 		builder.orderColumnsBy(StringComparator.INSTANCE);
@@ -106,16 +233,53 @@ public class MarkovBuildingVisitor extends JavaRecursiveElementWalkingVisitor {
 		return builder.build();
 	}
 
+	public NameModel getModel() {
+		return model;
+	}
+
+	public ChainModel getClassChain() {
+		return model.getClassChain();
+	}
+
+	public ChainModel getMethodChain() {
+		return model.getMethodChain();
+	}
+
+	public ChainModel getVariableChain() {
+		return model.getVariableChain();
+	}
+
 	public Table<String, String, Double> getClassTable() {
-		return probabilityTable(classTable);
+		if (classProbabilities == null) {
+			classProbabilities = probabilityTable(model.getClassChain());
+		}
+		return classProbabilities;
 	}
 
 	public Table<String, String, Double> getMethodTable() {
-		return probabilityTable(methodTable);
+		if (methodProbabilities == null) {
+			methodProbabilities = probabilityTable(model.getMethodChain());
+		}
+		return methodProbabilities;
 	}
 
 	public Table<String, String, Double> getVariableTable() {
-		return probabilityTable(variableTable);
+		if (variableProbabilities == null) {
+			variableProbabilities = probabilityTable(model.getVariableChain());
+		}
+		return variableProbabilities;
+	}
+
+	public NameSampler getClassSampler() {
+		return model.sampler(NameModel.Kind.CLASS);
+	}
+
+	public NameSampler getMethodSampler() {
+		return model.sampler(NameModel.Kind.METHOD);
+	}
+
+	public NameSampler getVariableSampler() {
+		return model.sampler(NameModel.Kind.VARIABLE);
 	}
 
 	private static class StringComparator implements Comparator<String>{
@@ -0,0 +1,199 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.*;
+import com.intellij.psi.search.searches.OverridingMethodsSearch;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * Method hierarchy of the whole project, built once before shuffling:
+ * deepest super methods, direct overriders and whether method overrides anything.
+ * Overriders are complete for methods of indexed files, since library methods can't override project ones.
+ *
+ * Methods outside of indexed files are computed on demand and cached.
+ * Renames don't change hierarchy, but reparsed files get new PSI: methods of indexed files,
+ * that are not in the graph or have invalid overriders, are searched directly.
+ *
+ * Hierarchy belongs to a single shuffle run and is passed to everything that needs it.
+ */
+public class MethodHierarchy {
+
+	private static final PsiMethod[] NO_METHODS = PsiMethod.EMPTY_ARRAY;
+
+	private ConcurrentMap<PsiMethod, Node> nodes = new ConcurrentHashMap<PsiMethod, Node>();
+	private Set<VirtualFile>               indexedFiles = new HashSet<VirtualFile>();
+
+	public static MethodHierarchy build(final Project project, Collection<VirtualFile> files,
+										ProgressIndicator indicator) {
+		final MethodHierarchy hierarchy = new MethodHierarchy();
+		hierarchy.indexedFiles.addAll(files);
+		for (final VirtualFile file : files) {
+			ApplicationManager.getApplication().runReadAction(new Runnable() {
+				@Override
+				public void run() {
+					if (!file.isValid()) return;
+					PsiFile psiFile = PsiManager.getInstance(project).findFile(file);
+					if (psiFile == null) return;
+					psiFile.accept(new JavaRecursiveElementWalkingVisitor() {
+						@Override
+						public void visitMethod(PsiMethod method) {
+							super.visitMethod(method);
+							hierarchy.add(method);
+						}
+					});
+				}
+			});
+			if (indicator != null) indicator.checkCanceled();
+		}
+		return hierarchy;
+	}
+
+	private Node add(PsiMethod method) {
+		Node node = node(method);
+		if (node.indexed) return node;
+		node.indexed = true;
+		for (PsiMethod superMethod : method.findSuperMethods()) {
+			node(superMethod).overriders.add(method);
+		}
+		return node;
+	}
+
+	private Node node(PsiMethod method) {
+		Node node = nodes.get(method);
+		if (node == null) {
+			Node created = new Node(method);
+			node = nodes.putIfAbsent(method, created);
+			if (node == null) node = created;
+		}
+		return node;
+	}
+
+	public PsiMethod[] findDeepestSuperMethods(PsiMethod method) {
+		return node(method).roots();
+	}
+
+	/*
+	 * @return true if method overrides or implements some other method
+	 */
+	public boolean isOverride(PsiMethod method) {
+		return node(method).isOverride();
+	}
+
+	/*
+	 * @return all methods of indexed files, overriding the method directly or indirectly
+	 */
+	public Collection<PsiMethod> findOverridingMethods(PsiMethod method) {
+		Collection<PsiMethod> overriders = knownOverriders(method);
+		return overriders != null ? overriders : OverridingMethodsSearch.search(method).findAll();
+	}
+
+	/*
+	 * @return overriders from the graph, or null if graph doesn't know them any more
+	 */
+	private Collection<PsiMethod> knownOverriders(PsiMethod method) {
+		if (!method.isValid()) return null;
+		Node root = nodes.get(method);
+		if ((root == null || !root.indexed) && isIndexed(method)) return null;
+
+		Set<PsiMethod> result = new LinkedHashSet<PsiMethod>();
+		Deque<PsiMethod> queue = new ArrayDeque<PsiMethod>();
+		queue.add(method);
+		while (!queue.isEmpty()) {
+			Node node = nodes.get(queue.poll());
+			if (node == null) continue;
+			for (PsiMethod overrider : node.overriders) {
+				if (!overrider.isValid()) return null;
+				if (result.add(overrider)) {
+					queue.add(overrider);
+				}
+			}
+		}
+		return result;
+	}
+
+	public boolean hasPublicOverrider(PsiMethod method) {
+		Node node = node(method);
+		if (node.publicOverrider == null) {
+			boolean found = false;
+			for (PsiMethod overrider : findOverridingMethods(method)) {
+				if (overrider.hasModifierProperty(PsiModifier.PUBLIC)) {
+					found = true;
+					break;
+				}
+			}
+			node.publicOverrider = found;
+		}
+		return node.publicOverrider;
+	}
+
+	private boolean isIndexed(PsiMethod method) {
+		PsiFile file = method.getContainingFile();
+		return file != null && indexedFiles.contains(file.getOriginalFile().getVirtualFile());
+	}
+
+	public int size() {
+		return nodes.size();
+	}
+
+	private static class Node {
+		private final PsiMethod       method;
+		private final List<PsiMethod> overriders = Collections.synchronizedList(new ArrayList<PsiMethod>(0));
+
+		private volatile boolean     indexed;
+		private volatile PsiMethod[] roots;
+		private volatile Boolean     override;
+		private volatile Boolean     publicOverrider;
+
+		private Node(PsiMethod method) {
+			this.method = method;
+		}
+
+		private PsiMethod[] roots() {
+			if (roots == null || !isValid(roots)) {
+				PsiMethod[] found = method.findDeepestSuperMethods();
+				roots = found != null ? found : NO_METHODS;
+			}
+			return roots;
+		}
+
+		private static boolean isValid(PsiMethod[] methods) {
+			for (PsiMethod method : methods) {
+				if (!method.isValid()) return false;
+			}
+			return true;
+		}
+
+		private boolean isOverride() {
+			if (override == null) {
+				HierarchicalMethodSignature signature = method.getHierarchicalMethodSignature();
+				List<HierarchicalMethodSignature> supers = signature != null ? signature.getSuperSignatures() : null;
+				override = supers != null && supers.size() > 0;
+			}
+			return override;
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler;
+
+import com.intellij.psi.*;
+
+import java.util.*;
+
+/*
+ * Names taken in a scope, so conflict checks don't have to walk the scope for every candidate name.
+ * Scopes are indexed lazily, once per scope:
+ *   variables - all variables declared inside of a root method,
+ *   methods - all methods declared inside of a class (including nested classes),
+ *   inherited methods - methods of a class together with inherited ones.
+ *
+ * Renames should be reported with {@link #renamed(PsiElement, String, String)}, so indexed names stay actual.
+ * Method tables are kept for the whole shuffle, so classes shared by many files are indexed once.
+ * Tables holding an element, that got invalid, are dropped and built again when asked for.
+ */
+public class NameOccupancyIndex {
+
+	private Map<PsiMethod, Map<String, List<PsiElement>>> variables        = new HashMap<PsiMethod, Map<String, List<PsiElement>>>();
+	private Map<PsiClass, Map<String, List<PsiElement>>>  methods          = new HashMap<PsiClass, Map<String, List<PsiElement>>>();
+	private Map<PsiClass, Map<String, List<PsiElement>>>  inheritedMethods = new HashMap<PsiClass, Map<String, List<PsiElement>>>();
+
+	// element -> name tables it's registered in
+	private Map<PsiElement, List<Map<String, List<PsiElement>>>> registrations =
+		new HashMap<PsiElement, List<Map<String, List<PsiElement>>>>();
+	// name table -> method or class it was built for
+	private Map<Map<String, List<PsiElement>>, PsiElement> owners =
+		new IdentityHashMap<Map<String, List<PsiElement>>, PsiElement>();
+
+	/*
+	 * @return variables named {@code name} declared inside of {@code rootMethod}
+	 */
+	public synchronized List<PsiVariable> variablesNamed(PsiMethod rootMethod, String name) {
+		Map<String, List<PsiElement>> names = variables.get(rootMethod);
+		if (names == null) {
+			names = new HashMap<String, List<PsiElement>>();
+			for (PsiVariable variable : ShuffleAction.findChildren(rootMethod, null, PsiVariable.class)) {
+				register(names, variable);
+			}
+			variables.put(rootMethod, names);
+			owners.put(names, rootMethod);
+		}
+		return lookup(names, name);
+	}
+
+	/*
+	 * @return methods named {@code name} declared inside of {@code psiClass}, or also inherited by it
+	 */
+	public synchronized List<PsiMethod> methodsNamed(PsiClass psiClass, String name, boolean checkBases) {
+		Map<String, List<PsiElement>> names = checkBases ? inheritedMethods.get(psiClass) : methods.get(psiClass);
+		if (names == null) {
+			names = new HashMap<String, List<PsiElement>>();
+			if (checkBases) {
+				for (PsiMethod method : psiClass.getAllMethods()) {
+					register(names, method);
+				}
+				inheritedMethods.put(psiClass, names);
+				owners.put(names, psiClass);
+			} else {
+				for (PsiMethod method : ShuffleAction.findChildren(psiClass, null, PsiMethod.class)) {
+					register(names, method);
+				}
+				methods.put(psiClass, names);
+				owners.put(names, psiClass);
+			}
+		}
+		return lookup(names, name);
+	}
+
+	public synchronized void renamed(PsiElement element, String oldName, String newName) {
+		List<Map<String, List<PsiElement>>> tables = registrations.get(element);
+		if (tables == null || oldName == null || oldName.equals(newName)) return;
+		for (Map<String, List<PsiElement>> names : tables) {
+			List<PsiElement> elements = names.get(oldName);
+			if (elements != null) {
+				elements.remove(element);
+				if (elements.isEmpty()) {
+					names.remove(oldName);
+				}
+			}
+			add(names, newName, element);
+		}
+	}
+
+	/*
+	 * Drops tables the element is registered in, e.g. when rename left it invalid.
+	 */
+	public synchronized void invalidate(PsiElement element) {
+		List<Map<String, List<PsiElement>>> tables = registrations.get(element);
+		if (tables == null) return;
+		for (Map<String, List<PsiElement>> names : new ArrayList<Map<String, List<PsiElement>>>(tables)) {
+			drop(names);
+		}
+	}
+
+	/*
+	 * Drops variable tables of methods declared in the file, they are not asked for once the file is shuffled.
+	 */
+	public synchronized void fileDone(PsiFile file) {
+		for (Iterator<Map.Entry<PsiMethod, Map<String, List<PsiElement>>>> i = variables.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry<PsiMethod, Map<String, List<PsiElement>>> entry = i.next();
+			if (!entry.getKey().isValid() || file.equals(entry.getKey().getContainingFile())) {
+				i.remove();
+				unregister(entry.getValue());
+			}
+		}
+	}
+
+	/*
+	 * Drops all indexed scopes, so PSI they hold can be collected.
+	 */
+	public synchronized void clear() {
+		variables.clear();
+		methods.clear();
+		inheritedMethods.clear();
+		registrations.clear();
+		owners.clear();
+	}
+
+	private void drop(Map<String, List<PsiElement>> names) {
+		PsiElement owner = unregister(names);
+		if (variables.get(owner) == names) variables.remove(owner);
+		if (methods.get(owner) == names) methods.remove(owner);
+		if (inheritedMethods.get(owner) == names) inheritedMethods.remove(owner);
+	}
+
+	// tables are compared by identity, different scopes may hold equal names
+	private PsiElement unregister(Map<String, List<PsiElement>> names) {
+		for (List<PsiElement> elements : names.values()) {
+			for (PsiElement element : elements) {
+				List<Map<String, List<PsiElement>>> tables = registrations.get(element);
+				if (tables == null) continue;
+				for (Iterator<Map<String, List<PsiElement>>> i = tables.iterator(); i.hasNext(); ) {
+					if (i.next() == names) i.remove();
+				}
+				if (tables.isEmpty()) registrations.remove(element);
+			}
+		}
+		return owners.remove(names);
+	}
+
+	private void register(Map<String, List<PsiElement>> names, PsiNamedElement element) {
+		if (element.getName() == null) return;
+		add(names, element.getName(), element);
+
+		List<Map<String, List<PsiElement>>> tables = registrations.get(element);
+		if (tables == null) {
+			tables = new ArrayList<Map<String, List<PsiElement>>>(2);
+			registrations.put(element, tables);
+		}
+		tables.add(names);
+	}
+
+	private static void add(Map<String, List<PsiElement>> names, String name, PsiElement element) {
+		List<PsiElement> elements = names.get(name);
+		if (elements == null) {
+			elements = new ArrayList<PsiElement>(1);
+			names.put(name, elements);
+		}
+		elements.add(element);
+	}
+
+	private static <T> List<T> lookup(Map<String, List<PsiElement>> names, String name) {
+		List<PsiElement> elements = names.get(name);
+		if (elements == null) return Collections.emptyList();
+		return new ArrayList<T>((Collection)elements);
+	}
+}
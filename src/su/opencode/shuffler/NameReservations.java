@@ -0,0 +1,272 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
+import com.intellij.psi.*;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.search.PsiShortNamesCache;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * Identifiers in use, so generated names can be checked before any refactoring starts.
+ * Names are reserved only in the scope where they can clash:
+ * classes in their package (or outer class), members in the class hierarchy they belong to,
+ * i.e. all source classes extending the same topmost source superclass,
+ * locals and parameters in their method, or in the initializer or code block outside of methods.
+ * Scoped names are kept as 64-bit hashes in a primitive open addressing set;
+ * hash collision only makes a free name look taken, which is safe.
+ *
+ * Class, method and field names come from short name indexes of the project.
+ * Local variables and library members are not indexed, conflicts with them are still caught by refactoring.
+ */
+public class NameReservations {
+
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private long[] hashes = new long[1024];
+	private int    size   = 0;
+
+	public static NameReservations build(Project project, final GlobalSearchScope scope, ProgressIndicator indicator) {
+		final PsiShortNamesCache cache = PsiShortNamesCache.getInstance(project);
+		final NameReservations reservations = new NameReservations();
+
+		for (final String name : allNames(new Computable<String[]>() {
+			@Override
+			public String[] compute() {
+				return cache.getAllClassNames();
+			}
+		})) {
+			reserveAll(reservations, name, new Computable<PsiElement[]>() {
+				@Override
+				public PsiElement[] compute() {
+					return cache.getClassesByName(name, scope);
+				}
+			});
+			if (indicator != null) indicator.checkCanceled();
+		}
+
+		for (final String name : allNames(new Computable<String[]>() {
+			@Override
+			public String[] compute() {
+				return cache.getAllMethodNames();
+			}
+		})) {
+			reserveAll(reservations, name, new Computable<PsiElement[]>() {
+				@Override
+				public PsiElement[] compute() {
+					return cache.getMethodsByName(name, scope);
+				}
+			});
+			if (indicator != null) indicator.checkCanceled();
+		}
+
+		for (final String name : allNames(new Computable<String[]>() {
+			@Override
+			public String[] compute() {
+				return cache.getAllFieldNames();
+			}
+		})) {
+			reserveAll(reservations, name, new Computable<PsiElement[]>() {
+				@Override
+				public PsiElement[] compute() {
+					return cache.getFieldsByName(name, scope);
+				}
+			});
+			if (indicator != null) indicator.checkCanceled();
+		}
+		return reservations;
+	}
+
+	private static String[] allNames(Computable<String[]> names) {
+		return ApplicationManager.getApplication().runReadAction(names);
+	}
+
+	// read action is taken per name, so writers are not blocked for the whole index traversal
+	private static void reserveAll(final NameReservations reservations, final String name,
+								   final Computable<PsiElement[]> declarations) {
+		ApplicationManager.getApplication().runReadAction(new Runnable() {
+			@Override
+			public void run() {
+				for (PsiElement declaration : declarations.compute()) {
+					reservations.reserve(declaration, name);
+				}
+			}
+		});
+	}
+
+	/*
+	 * Scope where the name of the element has to be unique.
+	 * Should be called in read action.
+	 */
+	static String scopeOf(PsiElement element) {
+		if (element instanceof PsiClass && ((PsiClass)element).getContainingClass() != null) {
+			return "class:" + qualifiedName(((PsiClass)element).getContainingClass());
+		}
+		if (element instanceof PsiClass) {
+			PsiFile file = element.getContainingFile();
+			return "package:" + (file instanceof PsiJavaFile ? ((PsiJavaFile)file).getPackageName() : "");
+		}
+		if (element instanceof PsiLocalVariable || element instanceof PsiParameter) {
+			PsiElement block = ShuffleAction.findParentPsiByType(element, PsiMethod.class);
+			if (block == null) block = ShuffleAction.findParentPsiByType(element, PsiClassInitializer.class);
+			if (block == null) block = ShuffleAction.findParentPsiByType(element, PsiCodeBlock.class);
+			// method may be renamed before its locals are released, so it's told by identity
+			if (block != null) return "block:" + System.identityHashCode(block);
+		}
+		PsiClass owner = element instanceof PsiMember ? ((PsiMember)element).getContainingClass()
+													  : ShuffleAction.findParentPsiByType(element, PsiClass.class);
+		if (owner != null) {
+			return "hierarchy:" + qualifiedName(hierarchyRoot(owner));
+		}
+		PsiFile file = element.getContainingFile();
+		return "file:" + (file != null ? file.getName() : "");
+	}
+
+	private static PsiClass hierarchyRoot(PsiClass psiClass) {
+		Set<PsiClass> visited = new HashSet<PsiClass>();
+		PsiClass root = psiClass;
+		while (visited.add(root)) {
+			PsiClass superClass = root.getSuperClass();
+			if (superClass == null || superClass instanceof PsiCompiledElement || !superClass.isWritable()) break;
+			root = superClass;
+		}
+		return root;
+	}
+
+	// local and anonymous classes have no qualified name, they are told apart by identity
+	private static String qualifiedName(PsiClass psiClass) {
+		String name = psiClass.getQualifiedName();
+		return name != null ? name : psiClass.getName() + "@" + System.identityHashCode(psiClass);
+	}
+
+	/*
+	 * @return true if name is not used in the scope of the element
+	 */
+	public boolean isFree(PsiElement element, String name) {
+		return isFree(scopeOf(element) + "#" + name);
+	}
+
+	/*
+	 * @return true if name was free in the scope of the element and now belongs to the caller
+	 */
+	public boolean reserve(PsiElement element, String name) {
+		return reserve(scopeOf(element) + "#" + name);
+	}
+
+	private synchronized boolean isFree(String name) {
+		long hash = hash(name);
+		int mask = hashes.length - 1;
+		int slot = slot(hash, mask);
+		while (hashes[slot] != 0) {
+			if (hashes[slot] == hash) return false;
+			slot = (slot + 1) & mask;
+		}
+		return true;
+	}
+
+	private synchronized boolean reserve(String name) {
+		return insert(hash(name));
+	}
+
+	/*
+	 * Frees name reserved by {@link #reserve(PsiElement, String)}, that was not used in the end.
+	 * Should be called in read action, before element gets any other name.
+	 */
+	public synchronized void release(PsiElement element, String name) {
+		remove(hash(scopeOf(element) + "#" + name));
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	private boolean insert(long hash) {
+		int mask = hashes.length - 1;
+		int slot = slot(hash, mask);
+		while (hashes[slot] != 0) {
+			if (hashes[slot] == hash) return false;
+			slot = (slot + 1) & mask;
+		}
+		hashes[slot] = hash;
+		size++;
+		if (size > hashes.length * LOAD_FACTOR) {
+			rehash();
+		}
+		return true;
+	}
+
+	// linear probing chains can't have holes, entries after removed one are shifted back
+	private boolean remove(long hash) {
+		int mask = hashes.length - 1;
+		int slot = slot(hash, mask);
+		while (hashes[slot] != 0 && hashes[slot] != hash) {
+			slot = (slot + 1) & mask;
+		}
+		if (hashes[slot] == 0) return false;
+
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while (hashes[next] != 0) {
+			int home = slot(hashes[next], mask);
+			// entry may fill the hole only if the hole is between its home slot and its current slot
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				hashes[hole] = hashes[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		hashes[hole] = 0;
+		size--;
+		return true;
+	}
+
+	private void rehash() {
+		long[] oldHashes = hashes;
+		hashes = new long[oldHashes.length * 2];
+		int mask = hashes.length - 1;
+		for (long hash : oldHashes) {
+			if (hash == 0) continue;
+			int slot = slot(hash, mask);
+			while (hashes[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			hashes[slot] = hash;
+		}
+	}
+
+	private static int slot(long hash, int mask) {
+		return (int)(hash ^ (hash >>> 32)) & mask;
+	}
+
+	// FNV-1a over chars, zero marks empty slot so it's never produced
+	static long hash(String name) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < name.length(); i++) {
+			hash ^= name.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash != 0 ? hash : 1;
+	}
+}
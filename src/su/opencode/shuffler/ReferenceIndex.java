@@ -0,0 +1,219 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.*;
+import com.intellij.psi.javadoc.PsiDocTagValue;
+import com.intellij.psi.search.LocalSearchScope;
+import com.intellij.psi.search.SearchScope;
+
+import java.util.*;
+
+/*
+ * Usages of elements, collected by resolving every reference in the project once,
+ * so renames don't have to run a reference search per symbol.
+ *
+ * Only references from java files to elements declared in indexed files are kept,
+ * library elements are never renamed, so their usages are not held in memory.
+ * Elements that can be referenced only locally (private members, locals, parameters) are always covered,
+ * other elements are covered only if index was told that there are no references to them from other languages,
+ * otherwise their usages are not kept at all.
+ *
+ * Index is updated when renames rewrite references, see {@link #reindex(Collection)}.
+ * Files changed in any other way are detected by modification stamps, elements declared in them or
+ * referenced from them are no longer covered and have to be searched as usual.
+ * It is not synchronized: it is read in read actions and updated in write actions only.
+ */
+public class ReferenceIndex {
+
+	private static final List<PsiReference> NO_USAGES = Collections.emptyList();
+
+	private boolean javaOnly;
+
+	private Set<VirtualFile>                    indexedFiles = new HashSet<VirtualFile>();
+	private Map<PsiElement, List<PsiReference>> usages       = new HashMap<PsiElement, List<PsiReference>>();
+	private Map<PsiFile, Set<PsiElement>>       targets      = new HashMap<PsiFile, Set<PsiElement>>();
+	// modification stamps of files as they were indexed
+	private Map<PsiFile, Long>                  stamps       = new HashMap<PsiFile, Long>();
+
+	/*
+	 * @param javaOnly true if non-local elements are never referenced from non-java files
+	 */
+	public ReferenceIndex(boolean javaOnly) {
+		this.javaOnly = javaOnly;
+	}
+
+	public static ReferenceIndex build(final Project project, Collection<VirtualFile> files, boolean javaOnly,
+									   ProgressIndicator indicator) {
+		final ReferenceIndex index = new ReferenceIndex(javaOnly);
+		index.indexedFiles.addAll(files);
+		for (final VirtualFile file : files) {
+			ApplicationManager.getApplication().runReadAction(new Runnable() {
+				@Override
+				public void run() {
+					if (!file.isValid()) return;
+					PsiFile psiFile = PsiManager.getInstance(project).findFile(file);
+					if (psiFile != null) {
+						index.index(psiFile);
+					}
+				}
+			});
+			if (indicator != null) indicator.checkCanceled();
+		}
+		return index;
+	}
+
+	public void index(PsiFile file) {
+		final Set<PsiElement> fileTargets = new HashSet<PsiElement>();
+		targets.put(file, fileTargets);
+		stamps.put(file, file.getModificationStamp());
+		file.accept(new JavaRecursiveElementWalkingVisitor() {
+			@Override
+			public void visitElement(PsiElement element) {
+				super.visitElement(element);
+				if (element instanceof PsiJavaCodeReferenceElement
+					|| element instanceof PsiDocTagValue
+					|| element instanceof PsiNameValuePair) {
+					for (PsiReference reference : element.getReferences()) {
+						for (PsiElement target : resolve(reference)) {
+							if (!isIndexed(target)) continue;
+							List<PsiReference> references = usages.get(target);
+							if (references == null) {
+								references = new ArrayList<PsiReference>(2);
+								usages.put(target, references);
+							}
+							references.add(reference);
+							fileTargets.add(target);
+						}
+					}
+				}
+			}
+		});
+	}
+
+	// poly-variant references (e.g. ambiguous calls) are usages of every candidate
+	private static List<PsiElement> resolve(PsiReference reference) {
+		if (!(reference instanceof PsiPolyVariantReference)) {
+			PsiElement target = reference.resolve();
+			return target != null ? Collections.singletonList(target) : Collections.<PsiElement>emptyList();
+		}
+		ResolveResult[] results = ((PsiPolyVariantReference)reference).multiResolve(false);
+		List<PsiElement> targets = new ArrayList<PsiElement>(results.length);
+		for (ResolveResult result : results) {
+			if (result.getElement() != null) {
+				targets.add(result.getElement());
+			}
+		}
+		return targets;
+	}
+
+	// usages of elements, that can't be covered, would be held for nothing
+	private boolean isIndexed(PsiElement target) {
+		PsiFile file = target.getContainingFile();
+		if (file == null || !indexedFiles.contains(file.getOriginalFile().getVirtualFile())) return false;
+		return javaOnly || target.getUseScope() instanceof LocalSearchScope;
+	}
+
+	/*
+	 * Drops references from given files and indexes them again.
+	 */
+	public void reindex(Collection<PsiFile> files) {
+		for (PsiFile file : files) {
+			stamps.remove(file);
+			Set<PsiElement> fileTargets = targets.remove(file);
+			if (fileTargets != null) {
+				for (PsiElement target : fileTargets) {
+					List<PsiReference> references = usages.get(target);
+					if (references == null) continue;
+					for (Iterator<PsiReference> i = references.iterator(); i.hasNext(); ) {
+						PsiElement element = i.next().getElement();
+						if (!element.isValid() || file.equals(element.getContainingFile())) {
+							i.remove();
+						}
+					}
+					if (references.isEmpty() || !target.isValid()) {
+						usages.remove(target);
+					}
+				}
+			}
+			if (file.isValid()) {
+				index(file);
+			}
+		}
+	}
+
+	/*
+	 * @return true if index has all usages of the element: the element is valid, its file and
+	 *         every file that referenced it are unchanged since they were indexed
+	 */
+	public boolean covers(PsiElement element) {
+		if (!element.isValid() || !isCurrent(element.getContainingFile())) return false;
+
+		List<PsiReference> references = usages.get(element);
+		if (references != null) {
+			for (PsiReference reference : references) {
+				PsiElement referencing = reference.getElement();
+				if (!referencing.isValid() || !isCurrent(referencing.getContainingFile())) return false;
+			}
+		}
+
+		SearchScope useScope = element.getUseScope();
+		if (useScope instanceof LocalSearchScope) {
+			for (PsiElement scopeElement : ((LocalSearchScope)useScope).getScope()) {
+				if (!isCurrent(scopeElement.getContainingFile())) return false;
+			}
+			return true;
+		}
+		return javaOnly;
+	}
+
+	private boolean isCurrent(PsiFile file) {
+		if (file == null) return false;
+		Long stamp = stamps.get(file.getOriginalFile());
+		return stamp != null && stamp == file.getOriginalFile().getModificationStamp();
+	}
+
+	public List<PsiReference> getUsages(PsiElement element) {
+		List<PsiReference> references = usages.get(element);
+		if (references == null) return NO_USAGES;
+
+		List<PsiReference> result = new ArrayList<PsiReference>(references.size());
+		for (PsiReference reference : references) {
+			if (reference.getElement().isValid()) {
+				result.add(reference);
+			}
+		}
+		return result;
+	}
+
+	public int size() {
+		return usages.size();
+	}
+
+	public void clear() {
+		usages.clear();
+		targets.clear();
+		stamps.clear();
+		indexedFiles.clear();
+	}
+}
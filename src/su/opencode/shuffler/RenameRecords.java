@@ -0,0 +1,65 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler;
+
+import com.intellij.psi.*;
+import su.opencode.shuffler.core.RenameRecord;
+
+/*
+ * Makes rename records of PSI elements, records themselves don't depend on IDE.
+ */
+public class RenameRecords {
+
+	private RenameRecords() {
+	}
+
+	/*
+	 * Record of element as it is now, new name is to be set once rename lands.
+	 *
+	 * @return null if element is not a class, method or variable
+	 */
+	public static RenameRecord of(PsiElement element) {
+		RenameRecord.Kind kind;
+		if (element instanceof PsiClass) {
+			kind = RenameRecord.Kind.CLASS;
+		} else if (element instanceof PsiMethod) {
+			kind = RenameRecord.Kind.METHOD;
+		} else if (element instanceof PsiField) {
+			kind = RenameRecord.Kind.FIELD;
+		} else if (element instanceof PsiVariable) {
+			kind = RenameRecord.Kind.VARIABLE;
+		} else {
+			return null;
+		}
+
+		String owner;
+		PsiClass ownerClass = ShuffleAction.findParentPsiByType(element, PsiClass.class);
+		if (ownerClass != null) {
+			owner = ownerClass.getQualifiedName();
+		} else {
+			PsiFile psiFile = element.getContainingFile();
+			owner = psiFile instanceof PsiJavaFile ? ((PsiJavaFile)psiFile).getPackageName() : "";
+		}
+
+		PsiFile psiFile = element.getContainingFile();
+		String file = psiFile != null && psiFile.getVirtualFile() != null ? psiFile.getVirtualFile().getPath() : null;
+
+		return new RenameRecord(kind, owner, ((PsiNamedElement)element).getName(), null, file);
+	}
+}
@@ -19,47 +19,32 @@
 package su.opencode.shuffler;
 
 import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Table;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.psi.*;
-import com.intellij.psi.search.searches.OverridingMethodsSearch;
-import com.intellij.refactoring.JavaRenameRefactoring;
 import com.intellij.refactoring.SilentJavaRenameRefactoring;
+import com.intellij.usageView.UsageInfo;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.Validate;
+import su.opencode.shuffler.core.NameConventions;
+import su.opencode.shuffler.core.NameSampler;
+import su.opencode.shuffler.core.RenameRecord;
 
 import java.io.Serializable;
-import java.lang.reflect.Field;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class RenamingVisitor extends JavaRecursiveElementWalkingVisitor {
 
 	private static int REFACTORING_ATTEMPTS = 5;
-	private static final Set<String> JAVA_KEYWORDS;
-
-	static {
-		Set<String> keywords = new HashSet<String>();
-		keywords.add("");
-		keywords.add("default");
-		for (Field f : PsiKeyword.class.getDeclaredFields()) {
-			try {
-				keywords.add((String)f.get(null));
-			} catch (Exception ex) {
-				throw new RuntimeException(ex);
-			}
-		}
-		JAVA_KEYWORDS = Collections.unmodifiableSet(keywords);
-	}
+	// sampling is cheap compared to refactoring, so candidates are drawn more eagerly
+	private static int NAME_ATTEMPTS = 50;
 
 
-	private Table<String, String, Double> variableChains;
-	private Table<String, String, Double> classChains;
-	private Table<String, String, Double> methodChains;
+	private NameSampler variableChains;
+	private NameSampler classChains;
+	private NameSampler methodChains;
 
 	private boolean renamePrivate = true;
 	private boolean renameProtected = true;
@@ -67,20 +52,41 @@ public class RenamingVisitor extends JavaRecursiveElementWalkingVisitor {
 	private boolean renameDefault = false;
     private boolean renamePublic = false;
 
-	private Set<String> ignoreMarkerAnnotations = new HashSet<String>();
+	private boolean batchRename = false;
+	private Map<PsiElement, String> pendingRenames = new LinkedHashMap<PsiElement, String>();
+	private Set<String> pendingNames = new HashSet<String>();
+	private Map<PsiElement, Origin> pendingOrigins = new HashMap<PsiElement, Origin>();
 
-	private CacheLoader<String,Boolean> markerCacheLoader = new CacheLoader(){
-		@Override
-		public Object load(Object o) throws Exception {
-			return isIgnoreMarker((String)o);
-		}
-	};
-	private LoadingCache<String,Boolean> ignoreMarkerFlagsCache = CacheBuilder.newBuilder()
-																		.build(markerCacheLoader);
+	private ShuffleMapping mapping;
+	private ReferenceIndex referenceIndex;
+	private MethodHierarchy methodHierarchy;
+	private NameOccupancyIndex occupancyIndex = new NameOccupancyIndex();
+	private NameReservations reservations;
+	private ShuffleMetrics metrics;
+
+	private int renamedCount;
+	private int failedCount;
+	private int stalePlans;
+
+	// candidates are only collected while file is planned, nothing is written
+	private boolean planning;
+	private Collection<RenameRecord> renameRecords;
+
+	private IgnoreMarkerMatcher ignoreMarkers;
+
+	// ignored status of classes and methods, so members and nested classes reuse it,
+	// cleared after every file, so PSI of visited files is not held for the whole run
+	private Map<PsiModifierListOwner, Boolean> ignoredOwners = new HashMap<PsiModifierListOwner, Boolean>();
 
 	public RenamingVisitor(Table<String, String, Double> variableChains,
 						   Table<String, String, Double> classChains,
 						   Table<String, String, Double> methodChains) {
+		this(compile(variableChains), compile(classChains), compile(methodChains));
+	}
+
+	public RenamingVisitor(NameSampler variableChains,
+						   NameSampler classChains,
+						   NameSampler methodChains) {
 		Validate.notNull(classChains);
 		Validate.notNull(methodChains);
 		Validate.notNull(variableChains);
@@ -95,114 +101,405 @@ public class RenamingVisitor extends JavaRecursiveElementWalkingVisitor {
 		ignoreMarkers.add("org.codehaus.jackson.*");
 		ignoreMarkers.add("com.fasterxml.jackson.*");
 		ignoreMarkers.add("org.springframework.beans.factory.annotation.Autowired");
-		this.ignoreMarkerAnnotations = Collections.unmodifiableSet(ignoreMarkers);
+		this.ignoreMarkers = new IgnoreMarkerMatcher(ignoreMarkers);
 	}
 
 	public RenamingVisitor(MarkovBuildingVisitor markovBuilder) {
-		this(markovBuilder.getVariableTable(), markovBuilder.getClassTable(), markovBuilder.getMethodTable());
+		this(markovBuilder.getVariableSampler(), markovBuilder.getClassSampler(), markovBuilder.getMethodSampler());
+	}
+
+	private static NameSampler compile(Table<String, String, Double> chainTable) {
+		Validate.notNull(chainTable);
+		NameSampler.Builder builder = new NameSampler.Builder();
+		for (Table.Cell<String, String, Double> cell : chainTable.cellSet()) {
+			builder.add(cell.getRowKey(), cell.getColumnKey(), cell.getValue());
+		}
+		return builder.build();
 	}
 
 	protected boolean refactor(final PsiElement element,
 							   final String newName,
 							   final boolean checkNonJava) {
 
-		final JavaRenameRefactoring refactoring = new SilentJavaRenameRefactoring(element.getProject(),
-																				  element, newName, checkNonJava);
+		final SilentJavaRenameRefactoring refactoring = new SilentJavaRenameRefactoring(element.getProject(),
+																						element, newName, checkNonJava);
+		refactoring.setReferenceIndex(referenceIndex);
+		refactoring.setOccupancyIndex(occupancyIndex);
+		refactoring.setMetrics(metrics);
+		refactoring.setRenameRecords(renameRecords);
+		refactoring.setMethodHierarchy(methodHierarchy);
+		long began = System.nanoTime();
 		refactoring.run();
 
-		return true;
+		boolean renamed = hasName(element, newName);
+		if (metrics != null) {
+			metrics.latency("rename", began);
+			metrics.increment("renamesAttempted");
+			if (!renamed) metrics.increment("renamesRejected");
+		}
+		return renamed;
+	}
+
+	/*
+	 * Renames all elements of the batch with a single processor run,
+	 * so usages are searched and conflicts checked in one pass.
+	 * Processor silently drops entries that have conflicts, so caller should check which elements were actually renamed.
+	 *
+	 * @return true if every element of the batch got its new name
+	 */
+	protected boolean refactor(final Map<PsiElement, String> renames,
+							   final boolean checkNonJava) {
+		if (renames.isEmpty()) return false;
+
+		long began = System.nanoTime();
+		batchRefactoring(renames, checkNonJava).run();
+		if (metrics != null) {
+			metrics.latency("batchRename", began);
+		}
+
+		return countLanded(renames);
+	}
+
+	// counts entries of the batch, rejected ones are retried later and counted again
+	private boolean countLanded(Map<PsiElement, String> renames) {
+		int rejected = 0;
+		for (Map.Entry<PsiElement, String> entry : renames.entrySet()) {
+			if (!hasName(entry.getKey(), entry.getValue())) rejected++;
+		}
+		if (metrics != null) {
+			metrics.add("renamesAttempted", renames.size());
+			metrics.add("renamesRejected", rejected);
+		}
+		return rejected == 0;
+	}
+
+	private SilentJavaRenameRefactoring batchRefactoring(Map<PsiElement, String> renames, boolean checkNonJava) {
+		Iterator<Map.Entry<PsiElement, String>> i = renames.entrySet().iterator();
+		Map.Entry<PsiElement, String> primary = i.next();
+
+		final SilentJavaRenameRefactoring refactoring = new SilentJavaRenameRefactoring(primary.getKey().getProject(),
+																						primary.getKey(), primary.getValue(),
+																						checkNonJava);
+		refactoring.setReferenceIndex(referenceIndex);
+		refactoring.setOccupancyIndex(occupancyIndex);
+		refactoring.setMetrics(metrics);
+		refactoring.setRenameRecords(renameRecords);
+		refactoring.setMethodHierarchy(methodHierarchy);
+		while (i.hasNext()) {
+			Map.Entry<PsiElement, String> entry = i.next();
+			refactoring.addElement(entry.getKey(), entry.getValue());
+		}
+		return refactoring;
+	}
+
+	/*
+	 * Read part of shuffling a file: picks candidates, generates names and finds usages of the whole file batch.
+	 * Should be called in read action, plan is applied later by {@link #apply(RenamePlan)} in write action.
+	 *
+	 * @return plan of the file, or null if there is nothing to rename
+	 */
+	public RenamePlan plan(PsiFile file) {
+		RenamePlan plan = null;
+		planning = true;
+		try {
+			file.acceptChildren(this);
+			if (pendingRenames.isEmpty()) return null;
+
+			plan = new RenamePlan(file, pendingRenames, pendingOrigins);
+			plan.refactoring = batchRefactoring(plan.renames, false);
+			plan.usages = plan.refactoring.prepare();
+			return plan;
+		} catch (RuntimeException ex) {
+			// planning is cancelled when a write action comes, names reserved so far go back
+			release(plan != null ? plan : new RenamePlan(file, pendingRenames, pendingOrigins));
+			throw ex;
+		} finally {
+			planning = false;
+			ignoredOwners.clear();
+			pendingRenames.clear();
+			pendingNames.clear();
+			pendingOrigins.clear();
+		}
+	}
+
+	/*
+	 * Write part of shuffling a file, should be called in write action.
+	 * If some previous write made the plan stale, file is shuffled from scratch.
+	 */
+	public void apply(RenamePlan plan) {
+		// PSI changed since usages were found, plan is dropped and file is shuffled as if it had none
+		if (plan.usages != null && plan.refactoring.isStale()) {
+			stalePlans++;
+			release(plan);
+			plan.file.accept(this);
+			return;
+		}
+
+		if (plan.usages != null) {
+			long began = System.nanoTime();
+			plan.refactoring.apply(plan.usages);
+			if (metrics != null) {
+				metrics.latency("batchRename", began);
+			}
+		}
+		countLanded(plan.renames);
+		settle(plan.renames, plan.origins);
+		if (occupancyIndex != null) {
+			occupancyIndex.fileDone(plan.file);
+		}
+	}
+
+	// names reserved for a dropped plan go back, file gets fresh names when it's shuffled again
+	private void release(RenamePlan plan) {
+		for (Map.Entry<PsiElement, String> entry : plan.renames.entrySet()) {
+			Origin origin = plan.origins.get(entry.getKey());
+			if (origin != null && origin.reserved && entry.getKey().isValid()) {
+				reservations.release(entry.getKey(), entry.getValue());
+			}
+		}
 	}
 
 	private void processElement(PsiElement element) {
 		if (element == null || !(element instanceof PsiModifierListOwner)) return;
+		if (planning) ProgressManager.checkCanceled();
+
+		ShuffleEvents.RenameEvent event = ShuffleEvents.beginRename();
+		String outcome = "failed";
+		try {
+			outcome = shuffleElement(element);
+		} finally {
+			ShuffleEvents.commitRename(event, element, outcome, referenceIndex);
+		}
+	}
+
+	/*
+	 * @return outcome of the element: why it was ignored, whether it was queued or renamed
+	 */
+	private String shuffleElement(PsiElement element) {
 		PsiModifierListOwner el = (PsiModifierListOwner) element;
 
-		if (ignoreElement(el)) {
-			return;
+		long began = System.nanoTime();
+		String ignored = ignoreReason(el);
+		if (metrics != null) {
+			metrics.time("candidateFiltering", began);
+			if (ignored != null) metrics.reject(ignored);
+		}
+		if (ignored != null) {
+			return ignored;
+		}
+
+		if (mapping != null && mapping.isShuffled(element)) {
+			return "alreadyShuffled";
 		}
 
-		int attempts = REFACTORING_ATTEMPTS;
-		boolean refactored = false;
+		Origin origin = origin(element);
+		if (batchRename || planning) {
+			return enqueueElement(element, origin) ? "queued" : "noFreeName";
+		} else {
+			return renameElement(element, origin) ? "renamed" : "failed";
+		}
+	}
 
+	/*
+	 * @param origin element as it was before shuffle, names and owners change as renames land
+	 */
+	private boolean renameElement(PsiElement element, Origin origin) {
 		String oldName = ((PsiNamedElement)element).getName();
 
-		while (!refactored && attempts > 0) {
-			String newName = null;
-			do {
-				attempts--;
-				newName = generateName(element);
-			} while (attempts > 0
-					 && (JAVA_KEYWORDS.contains(newName.toLowerCase())
-						 || StringUtils.isBlank(newName)
-						 || oldName.equals(newName)));
-
-			if (attempts > 0 && !StringUtils.isBlank(newName)) {
-				refactored = refactor(element, newName, false);
+		String mappedName = mappedName(origin, oldName);
+		if (mappedName != null && refactor(element, mappedName, false)) {
+			remember(origin, mappedName);
+			return true;
+		}
+
+		for (int attempts = REFACTORING_ATTEMPTS; attempts > 0; attempts--) {
+			String newName = freeName(element, oldName);
+			if (newName == null) break;
+			if (refactor(element, newName, false)) {
+				remember(origin, newName);
+				return true;
+			}
+			if (reservations != null) {
+				reservations.release(element, newName);
+			}
+		}
+		failedCount++;
+		return false;
+	}
+
+	private boolean enqueueElement(PsiElement element, Origin origin) {
+		String oldName = ((PsiNamedElement)element).getName();
+
+		String newName = mappedName(origin, oldName);
+		if (newName == null || pendingNames.contains(newName)) {
+			newName = freeName(element, oldName);
+			origin.reserved = newName != null && reservations != null;
+		}
+
+		if (newName != null) {
+			pendingRenames.put(element, newName);
+			pendingNames.add(newName);
+			pendingOrigins.put(element, origin);
+			return true;
+		}
+		failedCount++;
+		return false;
+	}
+
+	/*
+	 * Generated name is reserved in the scope of the element, so no other element there gets it during this run.
+	 * Locals are reserved in their method, same local name in different methods is fine.
+	 *
+	 * @return name that is not a keyword and is not in use, or null if chain can't produce one
+	 */
+	private String freeName(PsiElement element, String oldName) {
+		long began = System.nanoTime();
+		String name = generateFreeName(element, oldName);
+		if (metrics != null) {
+			metrics.time("nameGeneration", began);
+			if (name == null) metrics.reject("noFreeName");
+		}
+		return name;
+	}
+
+	private String generateFreeName(PsiElement element, String oldName) {
+		for (int attempts = NAME_ATTEMPTS; attempts > 0; attempts--) {
+			String newName = generateName(element);
+			if (StringUtils.isBlank(newName)
+				|| NameConventions.isKeyword(newName)
+				|| newName.equals(oldName)
+				|| pendingNames.contains(newName)) continue;
+
+			if (reservations == null) return newName;
+			if (reservations.reserve(element, newName)) return newName;
+		}
+		return null;
+	}
+
+	private String mappedName(Origin origin, String oldName) {
+		if (mapping == null) return null;
+		String mappedName = mapping.getNewName(origin.key);
+		if (mappedName == null || mappedName.equals(oldName)) return null;
+		return mappedName;
+	}
+
+	private Origin origin(PsiElement element) {
+		Origin origin = new Origin();
+		if (mapping != null) {
+			origin.key = ShuffleMapping.symbolKey(element);
+		}
+		if (renameRecords != null) {
+			origin.record = renameRecord(element);
+		}
+		return origin;
+	}
+
+	private void remember(Origin origin, String newName) {
+		renamedCount++;
+		if (metrics != null) {
+			metrics.increment("renamesApplied");
+		}
+		if (mapping != null) {
+			mapping.put(origin.key, newName);
+		}
+		if (renameRecords != null && origin.record != null) {
+			renameRecords.add(origin.record.withNewName(newName));
+		}
+	}
+
+	protected RenameRecord renameRecord(PsiElement element) {
+		return RenameRecords.of(element);
+	}
+
+	private static boolean hasName(PsiElement element, String name) {
+		return element.isValid() && name.equals(((PsiNamedElement)element).getName());
+	}
+
+	/*
+	 * Submits collected renames as one batch.
+	 * Entries rejected by the batch are retried one by one with freshly generated names.
+	 */
+	public void flushRenames() {
+		if (pendingRenames.isEmpty()) return;
+
+		Map<PsiElement, String> batch = new LinkedHashMap<PsiElement, String>(pendingRenames);
+		Map<PsiElement, Origin> origins = new HashMap<PsiElement, Origin>(pendingOrigins);
+		pendingRenames.clear();
+		pendingNames.clear();
+		pendingOrigins.clear();
+
+		refactor(batch, false);
+		settle(batch, origins);
+	}
+
+	// remembers renamed elements of the batch, rejected ones are retried one by one with fresh names
+	private void settle(Map<PsiElement, String> batch, Map<PsiElement, Origin> origins) {
+		for (Map.Entry<PsiElement, String> entry : batch.entrySet()) {
+			PsiElement element = entry.getKey();
+			if (!element.isValid()) continue;
+			Origin origin = origins.get(element);
+			if (hasName(element, entry.getValue())) {
+				remember(origin, entry.getValue());
+			} else {
+				// rejected name goes back, retry reserves its own
+				if (origin.reserved) {
+					reservations.release(element, entry.getValue());
+					origin.reserved = false;
+				}
+				renameElement(element, origin);
 			}
 		}
 	}
 
 	protected boolean ignoreElement(PsiModifierListOwner element){
-		if (element == null) return true;
-		if (!element.isWritable()) return true;
-		if (!element.isPhysical()) return true;
-		if (element instanceof PsiTypeParameter) return true;
-		if (element instanceof PsiMethod &&
-			(((PsiMethod)element).isConstructor() || !isMethodDeclaration((PsiMethod)element))) return true;
-		if (!(element instanceof PsiNamedElement) || ((PsiNamedElement)element).getName() == null) return true;
-		if (element.getOriginalElement() != element) return true;
-        		if (element instanceof PsiLocalVariable) return false;
-
-
-		return isOverride(element)
-			|| !renamePrivate && isPrivate(element)
-			|| !renameProtected && isProtected(element)
-			|| !renamePackage && isPackage(element)
-			|| !renameDefault && isDefault(element)
-			|| !renamePublic && isPublic(element)
-			|| ignoreMarkerPresent(element)
-			|| isSerializable(element);
+		return ignoreReason(element) != null;
+	}
+
+	/*
+	 * @return why element is not renamed, or null if it should be
+	 */
+	protected String ignoreReason(PsiModifierListOwner element){
+		if (element == null) return "null";
+		if (!element.isWritable()) return "readOnly";
+		if (!element.isPhysical()) return "nonPhysical";
+		if (element instanceof PsiTypeParameter) return "typeParameter";
+		if (element instanceof PsiMethod && ((PsiMethod)element).isConstructor()) return "constructor";
+		if (element instanceof PsiMethod && !isMethodDeclaration((PsiMethod)element)) return "notDeclaration";
+		if (!(element instanceof PsiNamedElement) || ((PsiNamedElement)element).getName() == null) return "unnamed";
+		if (element.getOriginalElement() != element) return "notOriginal";
+        		if (element instanceof PsiLocalVariable) return null;
+
+
+		if (isOverride(element)) return "override";
+		if (!renamePrivate && isPrivate(element)) return "private";
+		if (!renameProtected && isProtected(element)) return "protected";
+		if (!renamePackage && isPackage(element)) return "package";
+		if (!renameDefault && isDefault(element)) return "default";
+		if (!renamePublic && isPublic(element)) return "public";
+		if (ignoreMarkerPresent(element)) return "ignoreMarker";
+		if (isSerializable(element)) return "serializable";
+		return null;
 	}
 
 	protected String generateName(PsiElement element) {
-		Table<String, String, Double> chainTable = null;
+		NameSampler chain = null;
 		if (element instanceof PsiVariable){
-			chainTable = variableChains;
+			chain = variableChains;
 		} else if (element instanceof PsiClass) {
-			chainTable = classChains;
+			chain = classChains;
 		} else if (element instanceof PsiMethod) {
-			chainTable = methodChains;
+			chain = methodChains;
 		} else {
 			throw new IllegalArgumentException();
 		}
 
-		List<String> name = generateNameList(chainTable);
+		List<String> name = generateNameList(chain);
 
 		return conventionalizeName(element,name);
 	}
 
-	protected List<String> generateNameList(Table<String, String, Double> chainTable) {
-		List<String> result = new ArrayList<String>();
-		String current = "";
-		while (result.isEmpty() || !"".equals(current)) {
-			Map<String, Double> probs = chainTable.row(current);
-			if (probs.isEmpty()) {
-				current = "";
-			} else {
-				Iterator<Map.Entry<String, Double>> i = probs.entrySet().iterator();
-				double rnd = ThreadLocalRandom.current().nextDouble();
-
-				double sum = 0;
-				Map.Entry<String, Double> e = null;
-				while (i.hasNext() && rnd > sum) {
-					e = i.next();
-					sum += e.getValue();
-				}
-				current = e == null ? "" : e.getKey();
-				result.add(current);
-			}
-		}
-		return result;
+	protected List<String> generateNameList(NameSampler chain) {
+		return chain.sample(ThreadLocalRandom.current());
 	}
 
 	protected String conventionalizeName(PsiElement element, List<String> name) {
@@ -222,44 +519,22 @@ public class RenamingVisitor extends JavaRecursiveElementWalkingVisitor {
 	}
 
 	protected String className(List<String> name) {
-		StringBuilder sb = new StringBuilder();
-		for (String part : name) {
-			if (StringUtils.isBlank(part)) continue;
-			sb.append(StringUtils.capitalize(StringUtils.lowerCase(part)));
-		}
-		return sb.toString();
+		return NameConventions.className(name);
 	}
 
 	protected String localName(List<String> name) {
-		StringBuilder sb = new StringBuilder();
-		for (String part : name) {
-			if (StringUtils.isBlank(part)) continue;
-			sb.append(StringUtils.capitalize(StringUtils.lowerCase(part)));
-		}
-		char first = sb.charAt(0);
-		first = Character.toLowerCase(first);
-		sb.deleteCharAt(0);
-		sb.insert(0, first);
-		return sb.toString();
+		return NameConventions.localName(name);
 	}
 
 	protected String constantName(List<String> name) {
-		StringBuilder sb = new StringBuilder();
-		for (String part : name) {
-			if (StringUtils.isBlank(part)) continue;
-			sb.append("_").append(StringUtils.upperCase(part));
-		}
-		sb.deleteCharAt(0);
-		return sb.toString();
+		return NameConventions.constantName(name);
 	}
 
 	protected boolean isOverride(PsiModifierListOwner element){
 		if (!(element instanceof PsiMethod)){
 			return false;
 		}
-		PsiMethod method = (PsiMethod) element;
-		List<HierarchicalMethodSignature> supers = method.getHierarchicalMethodSignature().getSuperSignatures();
-		return supers != null && supers.size() > 0;
+		return ShuffleAction.isOverride(methodHierarchy, (PsiMethod)element);
 	}
 
 	protected boolean isPublic(PsiModifierListOwner element) {
@@ -270,13 +545,7 @@ public class RenamingVisitor extends JavaRecursiveElementWalkingVisitor {
 			return false;
 		}
 		if (element instanceof PsiMethod){
-			Iterator<PsiMethod> i = OverridingMethodsSearch.search((PsiMethod)element).iterator();
-			while (i.hasNext()){
-				PsiMethod method = i.next();
-				if (method.hasModifierProperty(PsiModifier.PUBLIC)){
-					return true;
-				}
-			}
+			return ShuffleAction.hasPublicOverrider(methodHierarchy, (PsiMethod)element);
 		}
 		return false;
 	}
@@ -311,18 +580,27 @@ public class RenamingVisitor extends JavaRecursiveElementWalkingVisitor {
 
 	protected boolean ignoreMarkerPresent(PsiModifierListOwner element) {
 		if (element == null) return false;
-		PsiModifierList modifierList = element.getModifierList();
+		boolean memoized = element instanceof PsiClass || element instanceof PsiMethod;
+		if (memoized) {
+			Boolean ignored = ignoredOwners.get(element);
+			if (ignored != null) return ignored;
+			// guards against cyclic hierarchies of broken code
+			ignoredOwners.put(element, Boolean.FALSE);
+		}
 
-		if (modifierList != null && modifierList.getChildren() != null) {
-			for (PsiElement mod : modifierList.getChildren()) {
-				if (!(mod instanceof PsiAnnotation)) continue;
-				PsiAnnotation annotation = (PsiAnnotation)mod;
-				try {
-					if (ignoreMarkerFlagsCache.get(annotation.getQualifiedName())) {
-						return true;
-					}
-				} catch (ExecutionException ex) {
+		boolean ignored = computeIgnoreMarkerPresent(element);
+		if (memoized) {
+			ignoredOwners.put(element, ignored);
+		}
+		return ignored;
+	}
 
+	private boolean computeIgnoreMarkerPresent(PsiModifierListOwner element) {
+		PsiModifierList modifierList = element.getModifierList();
+
+		if (modifierList != null) {
+			for (PsiAnnotation annotation : modifierList.getAnnotations()) {
+				if (isIgnoreMarker(annotation.getQualifiedName())) {
 					return true;
 				}
 			}
@@ -361,18 +639,20 @@ public class RenamingVisitor extends JavaRecursiveElementWalkingVisitor {
 	}
 
 	protected boolean isIgnoreMarker(String name) {
-		if (ignoreMarkerAnnotations.contains(name)) return true;
-		String[] nameParts = name.split("\\.");
-		StringBuilder sb = new StringBuilder();
-		for (String part: nameParts){
-			if (ignoreMarkerAnnotations.contains(sb.append(part).append(".").toString()+"*")) {
-				return true;
-			}
-		}
-		return false;
+		return ignoreMarkers.matches(name);
 	}
 
 
+	@Override
+	public void visitFile(PsiFile file) {
+		super.visitFile(file);
+		flushRenames();
+		if (occupancyIndex != null) {
+			occupancyIndex.fileDone(file);
+		}
+		ignoredOwners.clear();
+	}
+
 	@Override
 	public void visitVariable(PsiVariable element) {
 		super.visitVariable(element);
@@ -423,6 +703,85 @@ public class RenamingVisitor extends JavaRecursiveElementWalkingVisitor {
 		this.renamePackage = renamePackage;
 	}
 
+    public MethodHierarchy getMethodHierarchy() {
+        return methodHierarchy;
+    }
+
+    public void setMethodHierarchy(MethodHierarchy methodHierarchy) {
+        this.methodHierarchy = methodHierarchy;
+    }
+
+    public ReferenceIndex getReferenceIndex() {
+        return referenceIndex;
+    }
+
+    public void setReferenceIndex(ReferenceIndex referenceIndex) {
+        this.referenceIndex = referenceIndex;
+    }
+
+    public NameOccupancyIndex getOccupancyIndex() {
+        return occupancyIndex;
+    }
+
+    public void setOccupancyIndex(NameOccupancyIndex occupancyIndex) {
+        this.occupancyIndex = occupancyIndex;
+    }
+
+    public NameReservations getReservations() {
+        return reservations;
+    }
+
+    public void setReservations(NameReservations reservations) {
+        this.reservations = reservations;
+    }
+
+    public ShuffleMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(ShuffleMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public int getRenamedCount() {
+        return renamedCount;
+    }
+
+    public int getFailedCount() {
+        return failedCount;
+    }
+
+    public int getStalePlans() {
+        return stalePlans;
+    }
+
+    public ShuffleMapping getMapping() {
+        return mapping;
+    }
+
+    public void setMapping(ShuffleMapping mapping) {
+        this.mapping = mapping;
+    }
+
+    public Collection<RenameRecord> getRenameRecords() {
+        return renameRecords;
+    }
+
+    /*
+     * Every successful rename is added to the collection.
+     */
+    public void setRenameRecords(Collection<RenameRecord> renameRecords) {
+        this.renameRecords = renameRecords;
+    }
+
+    public boolean isBatchRename() {
+        return batchRename;
+    }
+
+    public void setBatchRename(boolean batchRename) {
+        this.batchRename = batchRename;
+    }
+
     public boolean isRenameDefault() {
         return renameDefault;
     }
@@ -431,9 +790,9 @@ public class RenamingVisitor extends JavaRecursiveElementWalkingVisitor {
         this.renameDefault = renameDefault;
     }
 
-    private static boolean isMethodDeclaration(PsiMethod element) {
+    private boolean isMethodDeclaration(PsiMethod element) {
 		if (element == null) return false;
-		PsiMethod[] sups = ShuffleAction.findDeepestSuperMethods(element);
+		PsiMethod[] sups = ShuffleAction.findDeepestSuperMethods(methodHierarchy, element);
 		if (sups == null || sups.length == 0) return true;
 		for (PsiMethod sup : sups) {
 			if (sup.isEquivalentTo(element)) {
@@ -443,4 +802,33 @@ public class RenamingVisitor extends JavaRecursiveElementWalkingVisitor {
 		return false;
 	}
 
+	private static class Origin {
+		private String       key;
+		private RenameRecord record;
+		// generated name was reserved for the element
+		private boolean      reserved;
+	}
+
+	/*
+	 * Renames of a single file prepared in read action, with usages already found and checked.
+	 */
+	public static class RenamePlan {
+		private final PsiFile                 file;
+		private final Map<PsiElement, String> renames;
+		private final Map<PsiElement, Origin> origins;
+
+		private SilentJavaRenameRefactoring refactoring;
+		private UsageInfo[]                 usages;
+
+		private RenamePlan(PsiFile file, Map<PsiElement, String> renames, Map<PsiElement, Origin> origins) {
+			this.file = file;
+			this.renames = new LinkedHashMap<PsiElement, String>(renames);
+			this.origins = new HashMap<PsiElement, Origin>(origins);
+		}
+
+		public PsiFile getFile() {
+			return file;
+		}
+	}
+
 }
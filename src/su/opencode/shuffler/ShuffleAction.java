@@ -18,10 +18,6 @@
 */
 package su.opencode.shuffler;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.intellij.ide.highlighter.JavaFileType;
 import com.intellij.openapi.actionSystem.AnAction;
 import com.intellij.openapi.actionSystem.AnActionEvent;
 import com.intellij.openapi.actionSystem.DataKeys;
@@ -30,49 +26,45 @@ import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.ui.DialogWrapper;
 import com.intellij.openapi.ui.Messages;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.*;
 import com.intellij.psi.search.*;
+import com.intellij.psi.search.searches.OverridingMethodsSearch;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.*;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ShuffleAction extends AnAction {
 
 	private static final Logger LOG = Logger.getLogger(ShuffleAction.class.getName());
 
-	private boolean includeLibraries = false;
+	/*
+	 * Hierarchy helpers take hierarchy of the current shuffle, methods are computed directly when there is none.
+	 */
+	public static PsiMethod[] findDeepestSuperMethods(MethodHierarchy hierarchy, final PsiMethod method) {
+		if (hierarchy != null) return hierarchy.findDeepestSuperMethods(method);
+		return method.findDeepestSuperMethods();
+	}
 
-	private boolean renamePublic = false;
-	private boolean renamePackage = true;
-	private boolean renameProtected = true;
-	private boolean renamePrivate = true;
-	private boolean renameDefault = true;
+	public static Collection<PsiMethod> findOverridingMethods(MethodHierarchy hierarchy, final PsiMethod method) {
+		if (hierarchy != null) return hierarchy.findOverridingMethods(method);
+		return OverridingMethodsSearch.search(method).findAll();
+	}
 
-	private static final CacheLoader<PsiMethod, PsiMethod[]> ROOT_METHOD_LOADER = new CacheLoader<PsiMethod, PsiMethod[]>() {
-		@Override
-		public PsiMethod[] load(PsiMethod psiMethod) throws Exception {
-			return psiMethod.findDeepestSuperMethods();
-		}
-	};
-
-	private static final LoadingCache<PsiMethod, PsiMethod[]> ROOT_METHODS = CacheBuilder.newBuilder()
-																						 .expireAfterAccess(2, TimeUnit.MINUTES)
-																						 .build(ROOT_METHOD_LOADER);
-
-	public static PsiMethod[] findDeepestSuperMethods(final PsiMethod method) {
-		try {
-			return ROOT_METHODS.get(method);
-		} catch (ExecutionException ex) {
-			LOG.log(Level.SEVERE, "Exception during root method cache loading", ex);
-			return null;
+	public static boolean isOverride(MethodHierarchy hierarchy, final PsiMethod method) {
+		if (hierarchy != null) return hierarchy.isOverride(method);
+		HierarchicalMethodSignature signature = method.getHierarchicalMethodSignature();
+		return signature != null && signature.getSuperSignatures().size() > 0;
+	}
+
+	public static boolean hasPublicOverrider(MethodHierarchy hierarchy, final PsiMethod method) {
+		if (hierarchy != null) return hierarchy.hasPublicOverrider(method);
+		for (PsiMethod overrider : OverridingMethodsSearch.search(method)) {
+			if (overrider.hasModifierProperty(PsiModifier.PUBLIC)) return true;
 		}
+		return false;
 	}
 
 	public static <T extends PsiElement> T findRootPsiByType(PsiElement element, Class<T> parentType) {
@@ -192,20 +184,25 @@ public class ShuffleAction extends AnAction {
         }
 
         String warning = String.format("Varaiable, class, and method names will be shuffled in %s, comments will be removed. \n" +
-                                       "It will block Idea and may take awhile. \n" +
+                                       "It may take awhile, shuffle runs in background and can be cancelled. \n" +
+                                       "Shuffle without undo is faster on large projects, but can't be undone, \n" +
+                                       "use VCS or \"Before shuffle\" label in Local History to revert it. \n" +
                                        "Do you want to shuffle?", scopeName);
 
-		int exitCode = Messages.showOkCancelDialog(project, warning,
+		int option = Messages.showDialog(project, warning,
 			"Shuffle project?",
-			"Shuffle","Cancel",null);
+			new String[]{"Shuffle", "Shuffle without undo", "Cancel"}, 0, null);
+
+		if (option != 0 && option != 1) return;
 
-		if (DialogWrapper.OK_EXIT_CODE != exitCode) return;
+		final ShuffleSettings settings = new ShuffleSettings();
+		settings.setBulkMode(option == 1);
 
-		Task task = new Task.Modal(project,"Shuffling",false){
+		Task task = new Task.Backgroundable(project,"Shuffling",true){
 
 			@Override
 			public void run(@NotNull ProgressIndicator indicator) {
-				ShuffleRunner runner = new ShuffleRunner(indicator,project,scope);
+				ShuffleRunner runner = new ShuffleRunner(indicator,project,scope,settings);
 				runner.run();
 			}
 		};
@@ -213,109 +210,6 @@ public class ShuffleAction extends AnAction {
 		ProgressManager.getInstance().run(task);
 	}
 
-	public void processFile(final Project project,final VirtualFile file,final PsiElementVisitor... visitors){
-		runInUI(new Runnable() {
-
-			@Override
-			public void run() {
-				if (!file.exists()) return;
-				PsiFile psiFile = PsiManager.getInstance(project).findFile(file);
-
-				if (!psiFile.isWritable() || !psiFile.isPhysical()) return;
-				if (psiFile != psiFile.getOriginalElement()) return;
-
-				for (PsiElementVisitor visitor: visitors){
-					if (visitor == null) continue;
-					psiFile.accept(visitor);
-				}
-			}
-
-		});
-	}
-
-	private class ShuffleRunner implements Runnable {
-
-        private Project           project;
-        private ProgressIndicator indicator;
-        private GlobalSearchScope shuffleScope;
-
-        private ShuffleRunner(ProgressIndicator indicator, Project project, GlobalSearchScope scope) {
-            this.indicator = indicator;
-            this.project = project;
-            if (scope == null) {
-                scope = GlobalSearchScopes.projectProductionScope(project);
-            }
-            this.shuffleScope = scope;
-        }
-
-        @Override
-        public void run() {
-            ROOT_METHODS.invalidateAll();
-            indicator.setFraction(0);
-
-
-            GlobalSearchScope projectScope = GlobalSearchScopes.projectProductionScope(project);
-
-            Collection<VirtualFile> projectFiles = FileTypeIndex.getFiles(JavaFileType.INSTANCE, projectScope);
-            Collection<VirtualFile> markovChainSourceFiles;
-
-            if (includeLibraries) {
-                projectScope = new ProjectAndLibrariesScope(project);
-                markovChainSourceFiles = FileTypeIndex.getFiles(JavaFileType.INSTANCE, projectScope);
-            } else {
-                markovChainSourceFiles = projectFiles;
-            }
-            indicator.setFraction(0.05);
-
-            double total   = markovChainSourceFiles.size();
-            int    counter = 0;
-
-            MarkovBuildingVisitor chainBuilder = new MarkovBuildingVisitor();
-
-            indicator.setText("Building Markov chain");
-            LOG.info("Building Markov chain in project " + project.getName());
-            for (VirtualFile file : markovChainSourceFiles) {
-                processFile(project, file, chainBuilder);
-                indicator.setText2(file.getCanonicalPath());
-                counter++;
-                indicator.setFraction(0.05 + 0.1 * counter / total);
-            }
-            LOG.info("Markov chain building finished, renaming in project " + project.getName());
-
-            //shuffling
-            DecommentingVisitor decommenter = new DecommentingVisitor();
-            InliningVisitor     inliner     = null; //new InliningVisitor();
-
-            RenamingVisitor renamer = new RenamingVisitor(chainBuilder);
-            renamer.setRenamePrivate(renamePrivate);
-            renamer.setRenameProtected(renameProtected);
-            renamer.setRenamePublic(renamePublic);
-            renamer.setRenamePackage(renamePackage);
-            renamer.setRenameDefault(renameDefault);
-
-            counter = 0;
-
-            Collection<VirtualFile> shuffledFiles = FileTypeIndex.getFiles(JavaFileType.INSTANCE, shuffleScope);
-            total = shuffledFiles.size();
-            indicator.setText("Shuffling");
-
-            for (VirtualFile file : shuffledFiles) {
-                //LOG.info("Shuffling "+file.getName());
-                indicator.setText2(file.getCanonicalPath());
-                try {
-                    processFile(project, file, decommenter, inliner, renamer);
-                } catch (Throwable ex) {
-                    LOG.log(Level.WARNING, "Failed to shuffle " + file.getName(), ex);
-                }
-                counter++;
-                indicator.setFraction(0.15 + 0.85 * counter / total);
-            }
-
-            ROOT_METHODS.invalidateAll();
-            LOG.finer("Renaming finished " + project.getName());
-        }
-    }
-
     public static void runInUI(Runnable r) {
         new UIRunnable(r).run();
     }
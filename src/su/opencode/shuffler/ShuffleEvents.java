@@ -0,0 +1,200 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.*;
+import jdk.jfr.*;
+
+/*
+ * Flight Recorder events of shuffle, so slow files and symbols are visible in recordings.
+ *
+ * Event classes are touched only when the running JVM has jdk.jfr, on older JVMs every begin returns null
+ * and every commit does nothing. Fields are computed only if the event is going to be recorded.
+ */
+public class ShuffleEvents {
+
+	private static final boolean AVAILABLE = isAvailable();
+
+	private static boolean isAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event", false, ShuffleEvents.class.getClassLoader());
+			return true;
+		} catch (Throwable ex) {
+			return false;
+		}
+	}
+
+	public static FileEvent beginFile() {
+		if (!AVAILABLE) return null;
+		FileEvent event = new FileEvent();
+		event.begin();
+		return event;
+	}
+
+	public static void commitFile(FileEvent event, VirtualFile file, String outcome, int renames) {
+		if (event == null || !event.shouldCommit()) return;
+		event.path = file.getPath();
+		event.outcome = outcome;
+		event.renames = renames;
+		event.commit();
+	}
+
+	public static RenameEvent beginRename() {
+		if (!AVAILABLE) return null;
+		RenameEvent event = new RenameEvent();
+		event.begin();
+		return event;
+	}
+
+	/*
+	 * @param references index to count usages with, usages are unknown (-1) for elements it doesn't cover
+	 */
+	public static void commitRename(RenameEvent event, PsiElement element, String outcome, ReferenceIndex references) {
+		if (event == null || !event.shouldCommit()) return;
+		boolean valid = element.isValid();
+		event.name = valid && element instanceof PsiNamedElement ? ((PsiNamedElement)element).getName() : null;
+		event.kind = kind(element);
+		event.visibility = valid ? visibility(element) : null;
+		event.usages = valid && references != null && references.covers(element) ? references.getUsages(element).size() : -1;
+		event.outcome = outcome;
+		event.commit();
+	}
+
+	public static ConflictCheckEvent beginConflictCheck() {
+		if (!AVAILABLE) return null;
+		ConflictCheckEvent event = new ConflictCheckEvent();
+		event.begin();
+		return event;
+	}
+
+	public static void commitConflictCheck(ConflictCheckEvent event, PsiElement primary, int elements, int rejected,
+										   int usages, boolean accepted) {
+		if (event == null || !event.shouldCommit()) return;
+		boolean valid = primary.isValid();
+		event.name = valid && primary instanceof PsiNamedElement ? ((PsiNamedElement)primary).getName() : null;
+		event.kind = kind(primary);
+		event.visibility = valid ? visibility(primary) : null;
+		event.elements = elements;
+		event.rejected = rejected;
+		event.usages = usages;
+		event.outcome = !accepted ? "rejected" : rejected > 0 ? "partial" : "accepted";
+		event.commit();
+	}
+
+	public static DecommentEvent beginDecomment() {
+		if (!AVAILABLE) return null;
+		DecommentEvent event = new DecommentEvent();
+		event.begin();
+		return event;
+	}
+
+	public static void commitDecomment(DecommentEvent event, String path, String method, String outcome) {
+		if (event == null || !event.shouldCommit()) return;
+		event.path = path;
+		event.method = method;
+		event.outcome = outcome;
+		event.commit();
+	}
+
+	static String kind(PsiElement element) {
+		if (element instanceof PsiClass) return "class";
+		if (element instanceof PsiMethod) return "method";
+		if (element instanceof PsiField) return "field";
+		if (element instanceof PsiParameter) return "parameter";
+		if (element instanceof PsiVariable) return "variable";
+		return element != null ? element.getClass().getSimpleName() : null;
+	}
+
+	static String visibility(PsiElement element) {
+		if (element instanceof PsiLocalVariable || element instanceof PsiParameter) return "local";
+		if (!(element instanceof PsiModifierListOwner)) return null;
+		PsiModifierListOwner owner = (PsiModifierListOwner)element;
+		if (owner.hasModifierProperty(PsiModifier.PUBLIC)) return PsiModifier.PUBLIC;
+		if (owner.hasModifierProperty(PsiModifier.PROTECTED)) return PsiModifier.PROTECTED;
+		if (owner.hasModifierProperty(PsiModifier.PRIVATE)) return PsiModifier.PRIVATE;
+		return PsiModifier.PACKAGE_LOCAL;
+	}
+
+	@Name("su.opencode.shuffler.File")
+	@Label("Shuffle File")
+	@Category("Shuffler")
+	@StackTrace(false)
+	public static class FileEvent extends Event {
+		@Label("Path")
+		String path;
+		@Label("Outcome")
+		String outcome;
+		@Label("Renames")
+		int renames;
+	}
+
+	@Name("su.opencode.shuffler.Rename")
+	@Label("Shuffle Element")
+	@Description("Candidate check and rename of a single element")
+	@Category("Shuffler")
+	@StackTrace(false)
+	public static class RenameEvent extends Event {
+		@Label("Name")
+		String name;
+		@Label("Kind")
+		String kind;
+		@Label("Visibility")
+		String visibility;
+		@Label("Usages")
+		int usages;
+		@Label("Outcome")
+		String outcome;
+	}
+
+	@Name("su.opencode.shuffler.ConflictCheck")
+	@Label("Rename Conflict Check")
+	@Description("Conflict check of a rename batch, named by its primary element")
+	@Category("Shuffler")
+	@StackTrace(false)
+	public static class ConflictCheckEvent extends Event {
+		@Label("Name")
+		String name;
+		@Label("Kind")
+		String kind;
+		@Label("Visibility")
+		String visibility;
+		@Label("Elements")
+		int elements;
+		@Label("Rejected")
+		int rejected;
+		@Label("Usages")
+		int usages;
+		@Label("Outcome")
+		String outcome;
+	}
+
+	@Name("su.opencode.shuffler.Decomment")
+	@Label("Remove Comments")
+	@Category("Shuffler")
+	@StackTrace(false)
+	public static class DecommentEvent extends Event {
+		@Label("Path")
+		String path;
+		@Label("Method")
+		String method;
+		@Label("Outcome")
+		String outcome;
+	}
+}
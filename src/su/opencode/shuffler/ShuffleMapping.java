@@ -0,0 +1,285 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.*;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Names given to symbols by previous shuffles and snapshot of files as they were left by the last shuffle.
+ * Files that weren't changed since the snapshot are already shuffled and can be skipped,
+ * symbols that were renamed before get the same name again, so unchanged code stays stable between releases.
+ * Snapshot holds shuffled content, so files are skipped only when the shuffled tree itself is shuffled again.
+ * In a fresh checkout of original sources every file is changed and shuffled, still with the recorded names.
+ */
+public class ShuffleMapping {
+
+	private static final Logger LOG = Logger.getLogger(ShuffleMapping.class.getName());
+
+	private static final int VERSION = 2;
+
+	private File file;
+
+	// symbol key (with original name) -> new name
+	private Map<String, String> names = new HashMap<String, String>();
+	// kind:name of every generated name, used to find shuffled symbols when file snapshot is taken
+	private Set<String> generated = new HashSet<String>();
+	// file url -> content hash and keys of shuffled symbols after shuffle
+	private Map<String, FileState> files = new HashMap<String, FileState>();
+
+	private ShuffleMapping(File file) {
+		this.file = file;
+	}
+
+	public static ShuffleMapping load(Project project) {
+		ShuffleMapping mapping = new ShuffleMapping(new File(ChainModelCache.storageDirectory(project), "mapping.bin"));
+		if (!mapping.file.isFile()) return mapping;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(mapping.file), 1 << 16));
+			if (in.readInt() != VERSION) return mapping;
+
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String key = in.readUTF();
+				String newName = in.readUTF();
+				mapping.names.put(key, newName);
+				mapping.generated.add(kind(key) + ":" + newName);
+			}
+			count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String url = in.readUTF();
+				FileState state = new FileState(in.readLong(), in.readLong(), in.readLong(), new HashSet<String>());
+				int keyCount = in.readInt();
+				for (int j = 0; j < keyCount; j++) {
+					state.shuffledKeys.add(in.readUTF());
+				}
+				mapping.files.put(url, state);
+			}
+			return mapping;
+		} catch (IOException ex) {
+			LOG.log(Level.WARNING, "Failed to load shuffle mapping " + mapping.file + ", all files will be shuffled", ex);
+			return new ShuffleMapping(mapping.file);
+		} finally {
+			close(in);
+		}
+	}
+
+	public void save() {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			file.getParentFile().mkdirs();
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+			out.writeInt(VERSION);
+			out.writeInt(names.size());
+			for (Map.Entry<String, String> entry : names.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeUTF(entry.getValue());
+			}
+			out.writeInt(files.size());
+			for (Map.Entry<String, FileState> entry : files.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeLong(entry.getValue().timestamp);
+				out.writeLong(entry.getValue().length);
+				out.writeLong(entry.getValue().hash);
+				out.writeInt(entry.getValue().shuffledKeys.size());
+				for (String key : entry.getValue().shuffledKeys) {
+					out.writeUTF(key);
+				}
+			}
+			out.close();
+			out = null;
+
+			if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+				throw new IOException("Can't replace " + file);
+			}
+		} catch (IOException ex) {
+			LOG.log(Level.WARNING, "Failed to save shuffle mapping " + file, ex);
+			tmp.delete();
+		} finally {
+			close(out);
+		}
+	}
+
+	/*
+	 * @return true if file is exactly as it was left by the last shuffle
+	 */
+	public boolean isUnchanged(VirtualFile virtualFile) throws IOException {
+		FileState state = files.get(virtualFile.getUrl());
+		if (state == null) return false;
+		if (state.timestamp == virtualFile.getTimeStamp() && state.length == virtualFile.getLength()) {
+			return true;
+		}
+		return state.hash == ChainModelCache.hash(virtualFile.contentsToByteArray());
+	}
+
+	/*
+	 * Remembers current (saved) content of shuffled file along with keys of symbols, that carry generated names.
+	 * Should be called under read action.
+	 */
+	public void recordFile(VirtualFile virtualFile, PsiFile psiFile) throws IOException {
+		files.put(virtualFile.getUrl(), new FileState(virtualFile.getTimeStamp(), virtualFile.getLength(),
+													  ChainModelCache.hash(virtualFile.contentsToByteArray()),
+													  shuffledKeys(psiFile)));
+	}
+
+	private Set<String> shuffledKeys(PsiFile psiFile) {
+		final Set<String> keys = new HashSet<String>();
+		if (psiFile == null) return keys;
+		psiFile.accept(new JavaRecursiveElementWalkingVisitor() {
+			@Override
+			public void visitClass(PsiClass aClass) {
+				super.visitClass(aClass);
+				collect(aClass);
+			}
+
+			@Override
+			public void visitMethod(PsiMethod method) {
+				super.visitMethod(method);
+				collect(method);
+			}
+
+			@Override
+			public void visitVariable(PsiVariable variable) {
+				super.visitVariable(variable);
+				collect(variable);
+			}
+
+			private void collect(PsiElement element) {
+				String key = symbolKey(element);
+				if (key != null && generated.contains(kind(key) + ":" + ((PsiNamedElement)element).getName())) {
+					keys.add(key);
+				}
+			}
+		});
+		return keys;
+	}
+
+	public String getNewName(String key) {
+		return key == null ? null : names.get(key);
+	}
+
+	public void put(String key, String newName) {
+		if (key == null) return;
+		names.put(key, newName);
+		generated.add(kind(key) + ":" + newName);
+	}
+
+	/*
+	 * @return true if element already has a name, that was generated by some previous shuffle,
+	 *         i.e. its key was recorded in the snapshot of its file.
+	 *         Symbols, that only happen to have some generated name, are not matched.
+	 */
+	public boolean isShuffled(PsiElement element) {
+		String key = symbolKey(element);
+		if (key == null) return false;
+		PsiFile psiFile = element.getContainingFile();
+		VirtualFile virtualFile = psiFile != null ? psiFile.getVirtualFile() : null;
+		FileState state = virtualFile != null ? files.get(virtualFile.getUrl()) : null;
+		return state != null && state.shuffledKeys.contains(key);
+	}
+
+	public int size() {
+		return names.size();
+	}
+
+	public int fileCount() {
+		return files.size();
+	}
+
+	/*
+	 * Key identifies symbol by its kind, owner and current name, methods also by parameter types.
+	 * Renaming visits members before their classes, so keys are built with original owner names.
+	 */
+	public static String symbolKey(PsiElement element) {
+		if (!(element instanceof PsiNamedElement) || ((PsiNamedElement)element).getName() == null) return null;
+		String name = ((PsiNamedElement)element).getName();
+
+		if (element instanceof PsiClass) {
+			PsiClass psiClass = (PsiClass)element;
+			if (psiClass.getQualifiedName() != null) {
+				return "class:" + psiClass.getQualifiedName();
+			}
+			return "class:" + ownerName(element) + "$" + name;
+		}
+		if (element instanceof PsiMethod) {
+			StringBuilder sb = new StringBuilder("method:").append(ownerName(element)).append('#').append(name).append('(');
+			for (PsiParameter parameter : ((PsiMethod)element).getParameterList().getParameters()) {
+				sb.append(parameter.getType().getCanonicalText()).append(',');
+			}
+			return sb.append(')').toString();
+		}
+		if (element instanceof PsiField) {
+			return "field:" + ownerName(element) + "#" + name;
+		}
+		if (element instanceof PsiVariable) {
+			PsiMethod method = ShuffleAction.findParentPsiByType(element, PsiMethod.class);
+			String owner = method != null ? symbolKey(method) : ownerName(element);
+			return "variable:" + owner + "#" + name;
+		}
+		return null;
+	}
+
+	private static String ownerName(PsiElement element) {
+		PsiClass owner = ShuffleAction.findParentPsiByType(element, PsiClass.class);
+		if (owner == null) {
+			PsiFile psiFile = element.getContainingFile();
+			return psiFile != null ? psiFile.getName() : "";
+		}
+		return owner.getQualifiedName() != null ? owner.getQualifiedName() : ownerName(owner) + "$" + owner.getName();
+	}
+
+	private static String kind(String key) {
+		return key.substring(0, key.indexOf(':'));
+	}
+
+	private static void close(Closeable closeable) {
+		if (closeable == null) return;
+		try {
+			closeable.close();
+		} catch (IOException ex) {
+			LOG.log(Level.FINE, "Failed to close shuffle mapping stream", ex);
+		}
+	}
+
+	private static class FileState {
+		private long timestamp;
+		private long length;
+		private long hash;
+		private Set<String> shuffledKeys;
+
+		private FileState(long timestamp, long length, long hash, Set<String> shuffledKeys) {
+			this.timestamp = timestamp;
+			this.length = length;
+			this.hash = hash;
+			this.shuffledKeys = shuffledKeys;
+		}
+	}
+}
@@ -0,0 +1,265 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/*
+ * Timers, counters and latency histograms of a single shuffle, written as JSON report at the end.
+ *
+ * Top level phases also track heap: used heap at the end of phase and peak of every heap pool during the phase.
+ * Pool peaks are reported separately, peaks of different pools are reached at different moments and don't add up.
+ * Only when GC is forced, e.g. by the regression harness, used heap is taken after a full GC, i.e. what the phase retains;
+ * shuffles of users never pause for it.
+ * Nested timers only measure time, phases of different threads overlap anyway.
+ * All methods are synchronized, planner and writer threads report concurrently.
+ */
+public class ShuffleMetrics {
+
+	// log2 buckets of microseconds, the last one takes everything above
+	private static final int BUCKETS = 32;
+
+	private final long startedAt = System.currentTimeMillis();
+
+	private final Map<String, Timer>  timers      = new LinkedHashMap<String, Timer>();
+	// used heap at the end of phase, retained heap when GC is forced
+	private final Map<String, Long>   endHeap     = new LinkedHashMap<String, Long>();
+	private final Map<String, Map<String, Long>> poolPeaks = new LinkedHashMap<String, Map<String, Long>>();
+	private final Map<String, Long>   counters    = new TreeMap<String, Long>();
+	private final Map<String, Long>   rejections  = new TreeMap<String, Long>();
+	private final Map<String, long[]> histograms  = new LinkedHashMap<String, long[]>();
+	private final Map<String, Long>   phaseStarts = new HashMap<String, Long>();
+
+	private boolean forceGc;
+
+	/*
+	 * Collects garbage at the end of every phase, so retained heap can be measured. Pauses the shuffle, benchmarks only.
+	 */
+	public synchronized void setForceGc(boolean forceGc) {
+		this.forceGc = forceGc;
+	}
+
+	public synchronized void beginPhase(String phase) {
+		for (MemoryPoolMXBean pool : heapPools()) {
+			pool.resetPeakUsage();
+		}
+		phaseStarts.put(phase, System.nanoTime());
+	}
+
+	public synchronized void endPhase(String phase) {
+		Long began = phaseStarts.remove(phase);
+		if (began == null) return;
+		time(phase, began);
+
+		Map<String, Long> peaks = poolPeaks.get(phase);
+		if (peaks == null) {
+			peaks = new TreeMap<String, Long>();
+			poolPeaks.put(phase, peaks);
+		}
+		for (MemoryPoolMXBean pool : heapPools()) {
+			Long previous = peaks.get(pool.getName());
+			long peak = pool.getPeakUsage().getUsed();
+			peaks.put(pool.getName(), previous == null ? peak : Math.max(previous, peak));
+		}
+
+		// phase time is already taken, collection pause is not counted
+		if (forceGc) {
+			System.gc();
+		}
+		long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+		Long previous = endHeap.get(phase);
+		endHeap.put(phase, previous == null ? used : Math.max(previous, used));
+	}
+
+	/*
+	 * Adds time elapsed since {@code began}, taken from {@link System#nanoTime()}.
+	 */
+	public synchronized void time(String timer, long began) {
+		Timer t = timers.get(timer);
+		if (t == null) {
+			t = new Timer();
+			timers.put(timer, t);
+		}
+		t.count++;
+		t.nanos += System.nanoTime() - began;
+	}
+
+	public synchronized void increment(String counter) {
+		add(counters, counter, 1);
+	}
+
+	public synchronized void add(String counter, long delta) {
+		add(counters, counter, delta);
+	}
+
+	public synchronized void reject(String reason) {
+		add(rejections, reason, 1);
+	}
+
+	public synchronized void latency(String histogram, long began) {
+		long[] buckets = histograms.get(histogram);
+		if (buckets == null) {
+			buckets = new long[BUCKETS];
+			histograms.put(histogram, buckets);
+		}
+		long micros = Math.max(1, (System.nanoTime() - began) / 1000);
+		int bucket = 63 - Long.numberOfLeadingZeros(micros);
+		buckets[Math.min(bucket, BUCKETS - 1)]++;
+	}
+
+	public synchronized long getCounter(String counter) {
+		Long value = counters.get(counter);
+		return value != null ? value : 0;
+	}
+
+	/*
+	 * @return highest heap retained at the end of a phase, bytes, or 0 if GC was not forced
+	 */
+	public synchronized long getRetainedHeap() {
+		if (!forceGc) return 0;
+		long retained = 0;
+		for (long phaseRetained : endHeap.values()) {
+			retained = Math.max(retained, phaseRetained);
+		}
+		return retained;
+	}
+
+	private static void add(Map<String, Long> map, String key, long delta) {
+		Long value = map.get(key);
+		map.put(key, value != null ? value + delta : delta);
+	}
+
+	private static List<MemoryPoolMXBean> heapPools() {
+		List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+				pools.add(pool);
+			}
+		}
+		return pools;
+	}
+
+	/*
+	 * @return written report file, named by start time of the run
+	 */
+	public File writeReport(File directory, String project) throws IOException {
+		directory.mkdirs();
+		String name = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(startedAt));
+		File report = new File(directory, "shuffle-" + name + ".json");
+		Writer out = new OutputStreamWriter(new FileOutputStream(report), "UTF-8");
+		try {
+			out.write(toJson(project));
+		} finally {
+			out.close();
+		}
+		return report;
+	}
+
+	public synchronized String toJson(String project) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n  \"project\": ").append(quote(project));
+		sb.append(",\n  \"startedAt\": ").append(startedAt);
+		sb.append(",\n  \"elapsedMs\": ").append(System.currentTimeMillis() - startedAt);
+
+		sb.append(",\n  \"phases\": {");
+		String separator = "";
+		for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+			Timer timer = entry.getValue();
+			sb.append(separator).append("\n    ").append(quote(entry.getKey())).append(": {")
+			  .append("\"count\": ").append(timer.count)
+			  .append(", \"totalMs\": ").append(timer.nanos / 1000000);
+			Long used = endHeap.get(entry.getKey());
+			if (used != null) {
+				sb.append(forceGc ? ", \"retainedHeapBytes\": " : ", \"usedHeapBytes\": ").append(used);
+			}
+			Map<String, Long> peaks = poolPeaks.get(entry.getKey());
+			if (peaks != null) {
+				sb.append(", \"poolPeakBytes\": {");
+				String poolSeparator = "";
+				for (Map.Entry<String, Long> pool : peaks.entrySet()) {
+					sb.append(poolSeparator).append(quote(pool.getKey())).append(": ").append(pool.getValue());
+					poolSeparator = ", ";
+				}
+				sb.append("}");
+			}
+			sb.append("}");
+			separator = ",";
+		}
+		sb.append("\n  }");
+
+		sb.append(",\n  \"counters\": ");
+		appendMap(sb, counters);
+		sb.append(",\n  \"rejections\": ");
+		appendMap(sb, rejections);
+
+		sb.append(",\n  \"latencyHistograms\": {");
+		separator = "";
+		for (Map.Entry<String, long[]> entry : histograms.entrySet()) {
+			sb.append(separator).append("\n    ").append(quote(entry.getKey())).append(": {");
+			String bucketSeparator = "";
+			long[] buckets = entry.getValue();
+			for (int i = 0; i < buckets.length; i++) {
+				if (buckets[i] == 0) continue;
+				// bucket is named by its upper bound
+				String bound = i == BUCKETS - 1 ? "inf" : "le" + ((1L << (i + 1)) - 1) + "us";
+				sb.append(bucketSeparator).append(quote(bound)).append(": ").append(buckets[i]);
+				bucketSeparator = ", ";
+			}
+			sb.append("}");
+			separator = ",";
+		}
+		sb.append("\n  }\n}\n");
+		return sb.toString();
+	}
+
+	private static void appendMap(StringBuilder sb, Map<String, Long> map) {
+		sb.append("{");
+		String separator = "";
+		for (Map.Entry<String, Long> entry : map.entrySet()) {
+			sb.append(separator).append("\n    ").append(quote(entry.getKey())).append(": ").append(entry.getValue());
+			separator = ",";
+		}
+		sb.append(map.isEmpty() ? "}" : "\n  }");
+	}
+
+	static String quote(String s) {
+		StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int)c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	private static class Timer {
+		private long count;
+		private long nanos;
+	}
+}
@@ -0,0 +1,808 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler;
+
+import com.intellij.history.LocalHistory;
+import com.intellij.ide.highlighter.JavaFileType;
+import com.intellij.openapi.application.ApplicationAdapter;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.Ref;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.*;
+import com.intellij.psi.search.*;
+import org.apache.commons.lang.StringUtils;
+import su.opencode.shuffler.core.CorpusModel;
+import su.opencode.shuffler.core.RenameMappingFile;
+import su.opencode.shuffler.core.RenameRecord;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Whole shuffle of a scope: chains, indexes, renaming and decommenting.
+ * Doesn't depend on UI, so it runs both from the action's progress task and from the headless starter.
+ */
+public class ShuffleRunner implements Runnable {
+
+    private static final Logger LOG = Logger.getLogger(ShuffleRunner.class.getName());
+
+    // longest write action, EDT is released between chunks
+    private static final long WRITE_CHUNK_MS = 50;
+    // files planned ahead of the writer, plans prepared too early are likely to get stale
+    private static final int PLANS_AHEAD = 4;
+
+
+    private Project           project;
+    private ProgressIndicator indicator;
+    private GlobalSearchScope shuffleScope;
+    private ShuffleSettings   settings;
+    private ShuffleMetrics    metrics = new ShuffleMetrics();
+    private File              report;
+    private ReferenceIndex    referenceIndex;
+    // records of the current chunk, earlier ones are flushed to the journal
+    private List<RenameRecord> renameRecords = new ArrayList<RenameRecord>();
+    private File               renameJournal;
+
+    private int  filesTotal;
+    private int  filesShuffled;
+    private int  filesSkipped;
+    private int  filesFailed;
+    private int  renamed;
+    private int  renameFailures;
+    private int  stalePlans;
+    private long elapsed;
+
+    public ShuffleRunner(ProgressIndicator indicator, Project project, GlobalSearchScope scope,
+                         ShuffleSettings settings) {
+        this.indicator = indicator;
+        this.project = project;
+        if (scope == null) {
+            scope = GlobalSearchScopes.projectProductionScope(project);
+        }
+        this.shuffleScope = scope;
+        this.settings = settings != null ? settings : new ShuffleSettings();
+    }
+
+    @Override
+    public void run() {
+        long start = System.currentTimeMillis();
+        try {
+            shuffle();
+        } finally {
+            elapsed = System.currentTimeMillis() - start;
+            writeReport();
+        }
+    }
+
+    private void writeReport() {
+        metrics.add("filesTotal", filesTotal);
+        metrics.add("filesShuffled", filesShuffled);
+        metrics.add("filesSkipped", filesSkipped);
+        metrics.add("filesFailed", filesFailed);
+        metrics.add("stalePlans", stalePlans);
+        try {
+            report = metrics.writeReport(new File(ChainModelCache.storageDirectory(project), "reports"), project.getName());
+            LOG.info("Shuffle report written to " + report);
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Failed to write shuffle report", ex);
+        }
+    }
+
+    private void shuffle() {
+        indicator.setFraction(0);
+
+        Collection<VirtualFile> shuffledFiles = FileTypeIndex.getFiles(JavaFileType.INSTANCE, shuffleScope);
+        filesTotal = shuffledFiles.size();
+
+        UndoSuppressor undoSuppressor = null;
+        if (settings.isBulkMode()) {
+            putLabel("Before shuffle");
+            undoSuppressor = UndoSuppressor.install(project);
+        }
+        try {
+            // files are reparsed after comments are removed, so it's done before anything keyed by PSI is built
+            if (settings.isLexerDecommenting()) {
+                decommentFiles(shuffledFiles);
+            }
+            shuffle(shuffledFiles);
+        } finally {
+            if (undoSuppressor != null) {
+                undoSuppressor.uninstall();
+            }
+        }
+    }
+
+    // pending PSI changes are committed before text is read, stripped documents are committed for the model build
+    private void decommentFiles(Collection<VirtualFile> files) {
+        indicator.setText("Removing comments");
+        commitDocuments();
+        metrics.beginPhase("decommenting");
+        int decommented = new LexerDecommenter(project).decomment(files, indicator);
+        metrics.endPhase("decommenting");
+        commitDocuments();
+        LOG.info("Comments removed from " + decommented + " files");
+    }
+
+    private void commitDocuments() {
+        ShuffleAction.runInUI(new Runnable() {
+            @Override
+            public void run() {
+                PsiDocumentManager.getInstance(project).commitAllDocuments();
+            }
+        });
+    }
+
+    private void shuffle(Collection<VirtualFile> shuffledFiles) {
+        GlobalSearchScope projectScope = GlobalSearchScopes.projectProductionScope(project);
+
+        Collection<VirtualFile> projectFiles = FileTypeIndex.getFiles(JavaFileType.INSTANCE, projectScope);
+        Collection<VirtualFile> markovChainSourceFiles = projectFiles;
+        Collection<VirtualFile> libraryFiles = Collections.emptyList();
+
+        // library names are always blended with corpus weight, never counted along with project ones
+        if (settings.isIncludeLibraries()) {
+            libraryFiles = new ArrayList<VirtualFile>(
+                    FileTypeIndex.getFiles(JavaFileType.INSTANCE, new ProjectAndLibrariesScope(project)));
+            libraryFiles.removeAll(new HashSet<VirtualFile>(projectFiles));
+        }
+        indicator.setFraction(0.05);
+
+        indicator.setText("Building Markov chain");
+        LOG.info("Building Markov chain in project " + project.getName());
+        metrics.beginPhase("modelBuild");
+        ChainModelCache cache = settings.isUseModelCache() ? ChainModelCache.load(project, settings.isUseNameIndexes()) : null;
+        MarkovBuildingVisitor chainBuilder = buildChains(markovChainSourceFiles, settings.isUseNameIndexes(), cache);
+        if (!libraryFiles.isEmpty()) {
+            blendLibraries(chainBuilder, libraryFiles);
+        }
+        for (File corpusFile : settings.getCorpusFiles()) {
+            blendCorpus(chainBuilder, corpusFile);
+        }
+        if (settings.isUseNameIndexes()) {
+            indicator.setText2("Reading name indexes");
+            new IndexedChainSource(project, projectScope).fill(chainBuilder, indicator);
+        }
+        metrics.endPhase("modelBuild");
+        if (indicator.isCanceled()) {
+            LOG.info("Shuffle cancelled while building Markov chain");
+            return;
+        }
+        LOG.info("Markov chain building finished, renaming in project " + project.getName());
+
+        //shuffling
+        // lexer pass removes comments before shuffling, PSI walk is not needed then
+        DecommentingVisitor decommenter = settings.isLexerDecommenting() ? null : new DecommentingVisitor();
+        InliningVisitor     inliner     = null; //new InliningVisitor();
+
+        RenamingVisitor renamer = new RenamingVisitor(chainBuilder);
+        renamer.setRenamePrivate(settings.isRenamePrivate());
+        renamer.setRenameProtected(settings.isRenameProtected());
+        renamer.setRenamePublic(settings.isRenamePublic());
+        renamer.setRenamePackage(settings.isRenamePackage());
+        renamer.setRenameDefault(settings.isRenameDefault());
+        renamer.setBatchRename(settings.isBatchRename());
+        renamer.setMetrics(metrics);
+
+        if (settings.isReserveNames()) {
+            metrics.beginPhase("nameReservations");
+            NameReservations reservations = NameReservations.build(project, GlobalSearchScope.projectScope(project),
+                                                                   indicator);
+            metrics.endPhase("nameReservations");
+            renamer.setReservations(reservations);
+            LOG.info("Name reservations built, " + reservations.size() + " names in use");
+        }
+
+        Collection<VirtualFile> referencingFiles =
+            FileTypeIndex.getFiles(JavaFileType.INSTANCE, GlobalSearchScope.projectScope(project));
+
+        indicator.setText("Building method hierarchy");
+        metrics.beginPhase("methodHierarchy");
+        MethodHierarchy hierarchy = MethodHierarchy.build(project, referencingFiles, indicator);
+        metrics.endPhase("methodHierarchy");
+        renamer.setMethodHierarchy(hierarchy);
+        LOG.info("Method hierarchy built, " + hierarchy.size() + " methods");
+
+        if (settings.isUseReferenceIndex()) {
+            indicator.setText("Indexing references");
+            metrics.beginPhase("referenceIndex");
+            referenceIndex = ReferenceIndex.build(project, referencingFiles, settings.isJavaOnlyReferences(), indicator);
+            metrics.endPhase("referenceIndex");
+            renamer.setReferenceIndex(referenceIndex);
+            LOG.info("Reference index built, " + referenceIndex.size() + " elements referenced");
+        }
+
+        ShuffleMapping mapping = settings.isIncrementalShuffle() ? ShuffleMapping.load(project) : null;
+        renamer.setMapping(mapping);
+        int snapshotFiles = mapping != null ? mapping.fileCount() : 0;
+
+        renameJournal = new File(ChainModelCache.storageDirectory(project), "renames.journal");
+        renameJournal.delete();
+        renamer.setRenameRecords(renameRecords);
+
+        indicator.setText("Shuffling");
+
+        Iterator<VirtualFile> pending = shuffledFiles.iterator();
+        List<VirtualFile> done = new ArrayList<VirtualFile>(filesTotal);
+        try {
+            metrics.beginPhase("shuffle");
+            if (settings.isPipelinedShuffle() && settings.isBatchRename()) {
+                shufflePipelined(pending, done, mapping, renamer, decommenter, inliner);
+            } else {
+                while (pending.hasNext() && !indicator.isCanceled()) {
+                    shuffleChunk(pending, done, mapping, decommenter, inliner, renamer);
+                }
+            }
+        } finally {
+            metrics.endPhase("shuffle");
+            // usages hold PSI of the whole project, they are not needed past this point
+            if (referenceIndex != null) {
+                referenceIndex.clear();
+                referenceIndex = null;
+            }
+            if (renamer.getOccupancyIndex() != null) {
+                renamer.getOccupancyIndex().clear();
+            }
+        }
+        if (indicator.isCanceled()) {
+            LOG.info("Shuffle cancelled, " + done.size() + " of " + filesTotal + " files processed");
+        }
+
+        renamed = renamer.getRenamedCount();
+        renameFailures = renamer.getFailedCount();
+        stalePlans = renamer.getStalePlans();
+        saveRenameRecords(mapping != null);
+
+        if (mapping != null) {
+            if (snapshotFiles > 0 && filesSkipped == 0) {
+                LOG.warning("No file matched shuffle snapshot, incremental shuffle skips only files of a shuffled tree");
+            }
+            saveSnapshot(mapping, done);
+            LOG.info("Shuffle mapping saved, " + filesSkipped + " unchanged files skipped, "
+                     + mapping.size() + " symbols mapped");
+        }
+
+        LOG.finer("Renaming finished " + project.getName());
+    }
+
+    private void saveRenameRecords(boolean append) {
+        File mappingFile = new File(ChainModelCache.storageDirectory(project), "renames.map");
+        try {
+            List<RenameRecord> records = RenameMappingFile.readJournal(renameJournal);
+            records.addAll(renameRecords);
+            renameRecords.clear();
+            RenameMappingFile.write(mappingFile, records, append);
+            LOG.info(records.size() + " renames written to " + mappingFile);
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Failed to write rename mapping " + mappingFile, ex);
+        } finally {
+            renameJournal.delete();
+        }
+    }
+
+    private void saveSnapshot(final ShuffleMapping mapping, Collection<VirtualFile> files) {
+        ShuffleAction.runInUI(new Runnable() {
+            @Override
+            public void run() {
+                FileDocumentManager.getInstance().saveAllDocuments();
+            }
+        });
+        for (final VirtualFile file : files) {
+            ApplicationManager.getApplication().runReadAction(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (file.isValid()) {
+                            mapping.recordFile(file, PsiManager.getInstance(project).findFile(file));
+                        }
+                    } catch (IOException ex) {
+                        LOG.log(Level.WARNING, "Failed to record " + file.getName(), ex);
+                    }
+                }
+            });
+        }
+        mapping.save();
+    }
+
+    /*
+     * Library sources rarely change, so their chains are walked once and kept as a corpus model,
+     * model is rebuilt only when the set of library files changes.
+     * Name indexes are read for project sources only, so library declarations are always walked in full.
+     */
+    private void blendLibraries(MarkovBuildingVisitor chainBuilder, Collection<VirtualFile> libraryFiles) {
+        boolean localsOnly = false;
+        File corpusFile = new File(ChainModelCache.storageDirectory(project), "libraries.corpus");
+        List<String> urls = new ArrayList<String>(libraryFiles.size());
+        for (VirtualFile file : libraryFiles) {
+            urls.add(file.getUrl());
+        }
+        Collections.sort(urls);
+        long sourceKey = ChainModelCache.hash(StringUtils.join(urls, '\n').getBytes(CorpusModel.UTF8));
+        if (settings.isLibraryCorpus() && CorpusModel.isCurrent(corpusFile, sourceKey, localsOnly)) {
+            blendCorpus(chainBuilder, corpusFile);
+            return;
+        }
+
+        indicator.setText("Building library corpus");
+        MarkovBuildingVisitor libraryChains = buildChains(libraryFiles, localsOnly, null);
+        if (indicator.isCanceled()) return;
+        if (!settings.isLibraryCorpus()) {
+            indicator.setText("Building Markov chain");
+            chainBuilder.blend(libraryChains, settings.getCorpusWeight());
+            return;
+        }
+        try {
+            CorpusModel.write(corpusFile, sourceKey, localsOnly, libraryChains.getVariableChain(),
+                              libraryChains.getClassChain(), libraryChains.getMethodChain());
+            LOG.info("Library corpus of " + libraryFiles.size() + " files written to " + corpusFile);
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Failed to write library corpus " + corpusFile, ex);
+        }
+        indicator.setText("Building Markov chain");
+        chainBuilder.blend(libraryChains, settings.getCorpusWeight());
+    }
+
+    private void blendCorpus(MarkovBuildingVisitor chainBuilder, File corpusFile) {
+        try {
+            CorpusModel corpus = new CorpusModel(corpusFile);
+            try {
+                chainBuilder.blend(corpus, settings.getCorpusWeight());
+            } finally {
+                corpus.close();
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Failed to read corpus " + corpusFile, ex);
+        }
+    }
+
+    /*
+     * Chains are built in read actions on a worker pool, every worker counts into its own visitor.
+     * When cache is given only files changed since the cache was saved are walked.
+     */
+    private MarkovBuildingVisitor buildChains(Collection<VirtualFile> files, final boolean localsOnly,
+                                              final ChainModelCache cache) {
+        final Queue<VirtualFile> queue   = new ConcurrentLinkedQueue<VirtualFile>(files);
+        final AtomicInteger      counter = new AtomicInteger();
+        final double             total   = files.size();
+
+        final Map<String, ChainModelCache.FileEntry> changed =
+            new ConcurrentHashMap<String, ChainModelCache.FileEntry>();
+
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<MarkovBuildingVisitor>> workers = new ArrayList<Future<MarkovBuildingVisitor>>(threads);
+        for (int i = 0; i < threads; i++) {
+            workers.add(executor.submit(new Callable<MarkovBuildingVisitor>() {
+                @Override
+                public MarkovBuildingVisitor call() throws Exception {
+                    MarkovBuildingVisitor localBuilder = new MarkovBuildingVisitor(localsOnly);
+                    VirtualFile file;
+                    // cancellation is checked per file, first build of a large project takes long
+                    while (!indicator.isCanceled() && (file = queue.poll()) != null) {
+                        try {
+                            if (cache == null) {
+                                readFile(project, file, localBuilder);
+                            } else {
+                                ChainModelCache.FileEntry entry = cache.checkFile(file);
+                                if (entry != null) {
+                                    boolean read = false;
+                                    localBuilder.setRecorder(entry.getNames());
+                                    try {
+                                        readFile(project, file, localBuilder);
+                                        read = true;
+                                    } finally {
+                                        localBuilder.setRecorder(null);
+                                        // failed file keeps its old entry and is walked again next time
+                                        if (!read) localBuilder.subtract(entry.getNames());
+                                    }
+                                    changed.put(file.getUrl(), entry);
+                                }
+                            }
+                        } catch (Throwable ex) {
+                            LOG.log(Level.WARNING, "Failed to read " + file.getName(), ex);
+                        }
+                        indicator.setText2(file.getCanonicalPath());
+                        indicator.setFraction(0.05 + 0.1 * counter.incrementAndGet() / total);
+                    }
+                    return localBuilder;
+                }
+            }));
+        }
+        executor.shutdown();
+
+        MarkovBuildingVisitor chainBuilder = new MarkovBuildingVisitor();
+        for (Future<MarkovBuildingVisitor> worker : workers) {
+            try {
+                chainBuilder.merge(worker.get());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                LOG.log(Level.WARNING, "Markov chain building interrupted", ex);
+            } catch (ExecutionException ex) {
+                LOG.log(Level.SEVERE, "Markov chain building failed", ex);
+            }
+        }
+        // counts of a cancelled build are partial, cache keeps the previous ones
+        if (cache == null || indicator.isCanceled()) {
+            return chainBuilder;
+        }
+
+        Set<String> present = new HashSet<String>(files.size());
+        for (VirtualFile file : files) {
+            present.add(file.getUrl());
+        }
+        cache.update(changed, present, chainBuilder);
+        cache.save();
+        LOG.info("Markov chain cache updated, " + changed.size() + " of " + cache.size() + " files changed");
+
+        MarkovBuildingVisitor cachedBuilder = new MarkovBuildingVisitor(localsOnly);
+        cachedBuilder.merge(cache.getVariableChain(), cache.getClassChain(), cache.getMethodChain());
+        return cachedBuilder;
+    }
+
+    /*
+     * Shuffles files in a single write action until the time slot is over,
+     * so EDT gets back to UI events between chunks. Cancellation is checked between files.
+     */
+    private void shuffleChunk(final Iterator<VirtualFile> files, final List<VirtualFile> done,
+                              final ShuffleMapping mapping, final PsiElementVisitor... visitors) {
+        ShuffleAction.runInUI(new Runnable() {
+            @Override
+            public void run() {
+                Set<Document> unsavedBefore = beginChunk();
+                long deadline = System.currentTimeMillis() + WRITE_CHUNK_MS;
+                do {
+                    VirtualFile file = files.next();
+                    indicator.setText2(file.getCanonicalPath());
+                    ShuffleEvents.FileEvent event = ShuffleEvents.beginFile();
+                    int renamedBefore = renamedCount(visitors);
+                    String outcome;
+                    try {
+                        if (mapping != null && mapping.isUnchanged(file)) {
+                            filesSkipped++;
+                            outcome = "unchanged";
+                        } else {
+                            shuffleFile(file, visitors);
+                            filesShuffled++;
+                            outcome = "shuffled";
+                        }
+                    } catch (Throwable ex) {
+                        filesFailed++;
+                        outcome = "failed";
+                        LOG.log(Level.WARNING, "Failed to shuffle " + file.getName(), ex);
+                    }
+                    ShuffleEvents.commitFile(event, file, outcome, renamedCount(visitors) - renamedBefore);
+                    done.add(file);
+                    indicator.setFraction(0.15 + 0.85 * done.size() / filesTotal);
+                } while (files.hasNext() && !indicator.isCanceled() && System.currentTimeMillis() < deadline);
+                endChunk(unsavedBefore);
+            }
+        });
+    }
+
+    /*
+     * Planner thread prepares renames of upcoming files in read actions,
+     * so write actions of this thread only apply ready plans, in the original order of files.
+     */
+    private void shufflePipelined(Iterator<VirtualFile> files, List<VirtualFile> done, ShuffleMapping mapping,
+                                  RenamingVisitor renamer, PsiElementVisitor... visitors) {
+        ExecutorService planner = Executors.newSingleThreadExecutor();
+        Deque<PlannedFile> ahead = new ArrayDeque<PlannedFile>();
+        try {
+            while ((files.hasNext() || !ahead.isEmpty()) && !indicator.isCanceled()) {
+                while (ahead.size() < PLANS_AHEAD && files.hasNext()) {
+                    ahead.add(submitPlan(planner, files.next(), mapping, renamer));
+                }
+                // waiting outside of write action, planner needs read access
+                try {
+                    ahead.peek().plan.get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException ex) {
+                    // file is shuffled without plan
+                }
+                applyChunk(ahead, done, mapping, renamer, visitors);
+            }
+        } finally {
+            planner.shutdownNow();
+        }
+    }
+
+    private PlannedFile submitPlan(ExecutorService planner, final VirtualFile file, final ShuffleMapping mapping,
+                                   final RenamingVisitor renamer) {
+        final PlannedFile planned = new PlannedFile(file);
+        planned.plan = planner.submit(new Callable<RenamingVisitor.RenamePlan>() {
+            @Override
+            public RenamingVisitor.RenamePlan call() throws Exception {
+                if (mapping != null && mapping.isUnchanged(file)) {
+                    planned.unchanged = true;
+                    return null;
+                }
+                return readWithWritePriority(new Computable<RenamingVisitor.RenamePlan>() {
+                    @Override
+                    public RenamingVisitor.RenamePlan compute() {
+                        if (!file.isValid()) return null;
+                        PsiFile psiFile = PsiManager.getInstance(project).findFile(file);
+
+                        if (psiFile == null || !psiFile.isWritable() || !psiFile.isPhysical()) return null;
+                        if (psiFile != psiFile.getOriginalElement()) return null;
+                        return renamer.plan(psiFile);
+                    }
+                });
+            }
+        });
+        return planned;
+    }
+
+    /*
+     * Runs computation in a read action, that is cancelled as soon as a write action is about to start,
+     * so planning never holds EDT writes back. Cancelled computation starts over once the write is done.
+     *
+     * @return null if shuffle was cancelled
+     */
+    private <T> T readWithWritePriority(final Computable<T> computable) {
+        while (!indicator.isCanceled()) {
+            final ProgressIndicator readIndicator = new EmptyProgressIndicator();
+            ApplicationAdapter writeListener = new ApplicationAdapter() {
+                @Override
+                public void beforeWriteActionStart(Object action) {
+                    readIndicator.cancel();
+                }
+            };
+            final Ref<T> result = new Ref<T>();
+            ApplicationManager.getApplication().addApplicationListener(writeListener);
+            try {
+                ProgressManager.getInstance().runProcess(new Runnable() {
+                    @Override
+                    public void run() {
+                        result.set(ApplicationManager.getApplication().runReadAction(computable));
+                    }
+                }, readIndicator);
+                return result.get();
+            } catch (ProcessCanceledException ex) {
+                metrics.add("plansRestarted", 1);
+            } finally {
+                ApplicationManager.getApplication().removeApplicationListener(writeListener);
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Applies ready plans in a single write action until the time slot is over.
+     * Files without usable plan are shuffled in place.
+     */
+    private void applyChunk(final Deque<PlannedFile> ahead, final List<VirtualFile> done, final ShuffleMapping mapping,
+                            final RenamingVisitor renamer, final PsiElementVisitor... visitors) {
+        final PsiElementVisitor[] allVisitors = Arrays.copyOf(visitors, visitors.length + 1);
+        allVisitors[visitors.length] = renamer;
+
+        ShuffleAction.runInUI(new Runnable() {
+            @Override
+            public void run() {
+                Set<Document> unsavedBefore = beginChunk();
+                long deadline = System.currentTimeMillis() + WRITE_CHUNK_MS;
+                do {
+                    PlannedFile planned = ahead.poll();
+                    VirtualFile file = planned.file;
+                    indicator.setText2(file.getCanonicalPath());
+                    ShuffleEvents.FileEvent event = ShuffleEvents.beginFile();
+                    int renamedBefore = renamer.getRenamedCount();
+                    String outcome;
+                    try {
+                        RenamingVisitor.RenamePlan plan = planned.get();
+                        if (planned.unchanged && mapping.isUnchanged(file)) {
+                            filesSkipped++;
+                            outcome = "unchanged";
+                        } else if (plan != null) {
+                            renamer.apply(plan);
+                            shuffleFile(file, visitors);
+                            filesShuffled++;
+                            outcome = "planned";
+                        } else {
+                            shuffleFile(file, allVisitors);
+                            filesShuffled++;
+                            outcome = "shuffled";
+                        }
+                    } catch (Throwable ex) {
+                        filesFailed++;
+                        outcome = "failed";
+                        LOG.log(Level.WARNING, "Failed to shuffle " + file.getName(), ex);
+                    }
+                    ShuffleEvents.commitFile(event, file, outcome, renamer.getRenamedCount() - renamedBefore);
+                    done.add(file);
+                    indicator.setFraction(0.15 + 0.85 * done.size() / filesTotal);
+                } while (!ahead.isEmpty() && ahead.peek().plan.isDone()
+                         && !indicator.isCanceled() && System.currentTimeMillis() < deadline);
+                endChunk(unsavedBefore);
+            }
+        });
+    }
+
+    private static int renamedCount(PsiElementVisitor... visitors) {
+        for (PsiElementVisitor visitor : visitors) {
+            if (visitor instanceof RenamingVisitor) return ((RenamingVisitor)visitor).getRenamedCount();
+        }
+        return 0;
+    }
+
+    private Set<Document> beginChunk() {
+        return new HashSet<Document>(Arrays.asList(FileDocumentManager.getInstance().getUnsavedDocuments()));
+    }
+
+    /*
+     * Without undo nothing else holds changed documents, so saving lets them go.
+     * Only documents changed by the chunk are saved, unsaved edits made before are left as they are.
+     * Rename records of the chunk go to the journal.
+     */
+    private void endChunk(Set<Document> unsavedBefore) {
+        if (settings.isBulkMode()) {
+            FileDocumentManager documentManager = FileDocumentManager.getInstance();
+            PsiDocumentManager psiDocumentManager = PsiDocumentManager.getInstance(project);
+            for (Document document : documentManager.getUnsavedDocuments()) {
+                if (unsavedBefore.contains(document)) continue;
+                psiDocumentManager.doPostponedOperationsAndUnblockDocument(document);
+                documentManager.saveDocument(document);
+            }
+        }
+        if (renameRecords.isEmpty()) return;
+        try {
+            RenameMappingFile.appendJournal(renameJournal, renameRecords);
+            renameRecords.clear();
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Failed to write rename journal " + renameJournal + ", records are kept in memory", ex);
+        }
+    }
+
+    private void putLabel(final String name) {
+        ShuffleAction.runInUI(new Runnable() {
+            @Override
+            public void run() {
+                LocalHistory.getInstance().putSystemLabel(project, name);
+            }
+        });
+    }
+
+	private void shuffleFile(VirtualFile file, PsiElementVisitor... visitors) {
+		if (!file.exists()) return;
+		PsiFile psiFile = PsiManager.getInstance(project).findFile(file);
+
+		if (!psiFile.isWritable() || !psiFile.isPhysical()) return;
+		if (psiFile != psiFile.getOriginalElement()) return;
+
+		for (PsiElementVisitor visitor: visitors){
+			if (visitor == null) continue;
+			long began = System.nanoTime();
+			psiFile.accept(visitor);
+			if (visitor instanceof DecommentingVisitor) {
+				metrics.time("decommenting", began);
+				// removed doc comments held references, index would not cover the file otherwise
+				if (referenceIndex != null) {
+					referenceIndex.reindex(Collections.singleton(psiFile));
+				}
+			}
+		}
+	}
+
+	private void readFile(final Project project,final VirtualFile file,final PsiElementVisitor... visitors){
+		ApplicationManager.getApplication().runReadAction(new Runnable() {
+
+			@Override
+			public void run() {
+				if (!file.isValid()) return;
+				PsiFile psiFile = PsiManager.getInstance(project).findFile(file);
+
+				if (psiFile == null || !psiFile.isPhysical()) return;
+				if (psiFile != psiFile.getOriginalElement()) return;
+
+				for (PsiElementVisitor visitor: visitors){
+					if (visitor == null) continue;
+					psiFile.accept(visitor);
+				}
+			}
+
+		});
+	}
+
+    /*
+     * Outcome of the run as a single line JSON object, for build pipelines.
+     */
+    public String getSummary() {
+        return "{\"project\":" + ShuffleMetrics.quote(project.getName())
+               + ",\"files\":" + filesTotal
+               + ",\"shuffled\":" + filesShuffled
+               + ",\"skipped\":" + filesSkipped
+               + ",\"failedFiles\":" + filesFailed
+               + ",\"renamed\":" + renamed
+               + ",\"failedRenames\":" + renameFailures
+               + ",\"stalePlans\":" + stalePlans
+               + ",\"elapsedMs\":" + elapsed
+               + (report != null ? ",\"report\":" + ShuffleMetrics.quote(report.getPath()) : "")
+               + "}";
+    }
+
+    public ShuffleMetrics getMetrics() {
+        return metrics;
+    }
+
+    public int getFilesTotal() {
+        return filesTotal;
+    }
+
+    public int getFilesShuffled() {
+        return filesShuffled;
+    }
+
+    public int getFilesSkipped() {
+        return filesSkipped;
+    }
+
+    public int getFilesFailed() {
+        return filesFailed;
+    }
+
+    public int getRenamed() {
+        return renamed;
+    }
+
+    public int getRenameFailures() {
+        return renameFailures;
+    }
+
+    public int getStalePlans() {
+        return stalePlans;
+    }
+
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    private static class PlannedFile {
+        private final VirtualFile file;
+        private Future<RenamingVisitor.RenamePlan> plan;
+        // set by planner when the file is same as after previous shuffle
+        private volatile boolean unchanged;
+
+        private PlannedFile(VirtualFile file) {
+            this.file = file;
+        }
+
+        // plan that failed is treated as missing, file is shuffled in place then
+        private RenamingVisitor.RenamePlan get() throws InterruptedException {
+            try {
+                return plan.get();
+            } catch (ExecutionException ex) {
+                LOG.log(Level.WARNING, "Failed to plan " + file.getName(), ex.getCause());
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Options of a single shuffle, shared by the IDE action and the headless starter.
+ */
+public class ShuffleSettings {
+
+	private boolean includeLibraries = false;
+	private boolean useNameIndexes = true;
+	private boolean useModelCache = true;
+
+	private boolean renamePublic = false;
+	private boolean renamePackage = true;
+	private boolean renameProtected = true;
+	private boolean renamePrivate = true;
+	private boolean renameDefault = true;
+
+	private boolean batchRename = true;
+	// skips files left as they were by the last shuffle, works on a tree that keeps shuffled sources
+	private boolean incrementalShuffle = false;
+	private boolean useReferenceIndex = true;
+	private boolean javaOnlyReferences = false;
+	private boolean reserveNames = true;
+	private boolean pipelinedShuffle = true;
+	// shuffle is not recorded for undo, see UndoSuppressor, has to be asked for explicitly
+	private boolean bulkMode = false;
+	private boolean lexerDecommenting = true;
+
+	// library chains are walked once and kept as a corpus model
+	private boolean    libraryCorpus = true;
+	private List<File> corpusFiles   = new ArrayList<File>();
+	private double     corpusWeight  = 1.0;
+
+	public boolean isIncludeLibraries() {
+		return includeLibraries;
+	}
+
+	public void setIncludeLibraries(boolean includeLibraries) {
+		this.includeLibraries = includeLibraries;
+	}
+
+	public boolean isUseNameIndexes() {
+		return useNameIndexes;
+	}
+
+	public void setUseNameIndexes(boolean useNameIndexes) {
+		this.useNameIndexes = useNameIndexes;
+	}
+
+	public boolean isUseModelCache() {
+		return useModelCache;
+	}
+
+	public void setUseModelCache(boolean useModelCache) {
+		this.useModelCache = useModelCache;
+	}
+
+	public boolean isRenamePublic() {
+		return renamePublic;
+	}
+
+	public void setRenamePublic(boolean renamePublic) {
+		this.renamePublic = renamePublic;
+	}
+
+	public boolean isRenamePackage() {
+		return renamePackage;
+	}
+
+	public void setRenamePackage(boolean renamePackage) {
+		this.renamePackage = renamePackage;
+	}
+
+	public boolean isRenameProtected() {
+		return renameProtected;
+	}
+
+	public void setRenameProtected(boolean renameProtected) {
+		this.renameProtected = renameProtected;
+	}
+
+	public boolean isRenamePrivate() {
+		return renamePrivate;
+	}
+
+	public void setRenamePrivate(boolean renamePrivate) {
+		this.renamePrivate = renamePrivate;
+	}
+
+	public boolean isRenameDefault() {
+		return renameDefault;
+	}
+
+	public void setRenameDefault(boolean renameDefault) {
+		this.renameDefault = renameDefault;
+	}
+
+	public boolean isBatchRename() {
+		return batchRename;
+	}
+
+	public void setBatchRename(boolean batchRename) {
+		this.batchRename = batchRename;
+	}
+
+	public boolean isIncrementalShuffle() {
+		return incrementalShuffle;
+	}
+
+	public void setIncrementalShuffle(boolean incrementalShuffle) {
+		this.incrementalShuffle = incrementalShuffle;
+	}
+
+	public boolean isUseReferenceIndex() {
+		return useReferenceIndex;
+	}
+
+	public void setUseReferenceIndex(boolean useReferenceIndex) {
+		this.useReferenceIndex = useReferenceIndex;
+	}
+
+	public boolean isJavaOnlyReferences() {
+		return javaOnlyReferences;
+	}
+
+	public void setJavaOnlyReferences(boolean javaOnlyReferences) {
+		this.javaOnlyReferences = javaOnlyReferences;
+	}
+
+	public boolean isReserveNames() {
+		return reserveNames;
+	}
+
+	public void setReserveNames(boolean reserveNames) {
+		this.reserveNames = reserveNames;
+	}
+
+	public boolean isPipelinedShuffle() {
+		return pipelinedShuffle;
+	}
+
+	public void setPipelinedShuffle(boolean pipelinedShuffle) {
+		this.pipelinedShuffle = pipelinedShuffle;
+	}
+
+	public boolean isBulkMode() {
+		return bulkMode;
+	}
+
+	public void setBulkMode(boolean bulkMode) {
+		this.bulkMode = bulkMode;
+	}
+
+	public boolean isLexerDecommenting() {
+		return lexerDecommenting;
+	}
+
+	public void setLexerDecommenting(boolean lexerDecommenting) {
+		this.lexerDecommenting = lexerDecommenting;
+	}
+
+	public boolean isLibraryCorpus() {
+		return libraryCorpus;
+	}
+
+	public void setLibraryCorpus(boolean libraryCorpus) {
+		this.libraryCorpus = libraryCorpus;
+	}
+
+	/*
+	 * Prebuilt corpus models blended into project chains.
+	 */
+	public List<File> getCorpusFiles() {
+		return corpusFiles;
+	}
+
+	public void setCorpusFiles(List<File> corpusFiles) {
+		this.corpusFiles = corpusFiles;
+	}
+
+	public double getCorpusWeight() {
+		return corpusWeight;
+	}
+
+	public void setCorpusWeight(double corpusWeight) {
+		this.corpusWeight = corpusWeight;
+	}
+}
@@ -0,0 +1,234 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler;
+
+import com.intellij.ide.highlighter.JavaFileType;
+import com.intellij.ide.impl.ProjectUtil;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ApplicationStarter;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.module.ModuleManager;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ex.ProjectManagerEx;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.search.FileTypeIndex;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.search.GlobalSearchScopes;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Shuffles project without UI, for build pipelines:
+ *
+ *   idea.sh shuffle <project path> [--scope=production|project|module:<name>|dir:<path>]
+ *                   [--public] [--no-protected] [--no-package] [--no-private] [--no-default]
+ *                   [--libraries] [--incremental] [--bulk] [--comments-only] [--corpus=<file>]... [--corpus-weight=<weight>]
+ *
+ * Prints single line JSON summary to stdout and exits with:
+ * 0 when everything was shuffled, 1 on bad arguments, 2 when project can't be shuffled,
+ * 3 when some files failed.
+ */
+public class ShuffleStarter implements ApplicationStarter {
+
+	private static final Logger LOG = Logger.getLogger(ShuffleStarter.class.getName());
+
+	public static final int EXIT_OK           = 0;
+	public static final int EXIT_USAGE        = 1;
+	public static final int EXIT_FAILURE      = 2;
+	public static final int EXIT_FILES_FAILED = 3;
+
+	private static final String USAGE = "Usage: shuffle <project path> "
+										+ "[--scope=production|project|module:<name>|dir:<path>] "
+										+ "[--public] [--no-protected] [--no-package] [--no-private] [--no-default] "
+										+ "[--libraries] [--incremental] [--bulk] [--comments-only] [--corpus=<file>]... [--corpus-weight=<weight>]";
+
+	private String          projectPath;
+	private String          scopeName = "production";
+	private ShuffleSettings settings  = new ShuffleSettings();
+	// only strips comments with lexer, names are left as is
+	private boolean         commentsOnly;
+
+	@Override
+	public String getCommandName() {
+		return "shuffle";
+	}
+
+	@Override
+	public void premain(String[] args) {
+	}
+
+	@Override
+	public void main(String[] args) {
+		final Project project;
+		try {
+			if (!parse(args)) {
+				System.exit(EXIT_USAGE);
+				return;
+			}
+			project = ProjectManagerEx.getInstanceEx().loadAndOpenProject(projectPath);
+		} catch (Throwable ex) {
+			LOG.log(Level.SEVERE, "Can't open project " + projectPath, ex);
+			System.exit(EXIT_FAILURE);
+			return;
+		}
+		if (project == null) {
+			System.err.println("Can't open project " + projectPath);
+			System.exit(EXIT_FAILURE);
+			return;
+		}
+
+		// shuffle waits for indexes and hands writes over to EDT, so it runs on a pooled thread and EDT stays free
+		ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+			@Override
+			public void run() {
+				int exitCode;
+				try {
+					exitCode = shuffle(project);
+				} catch (Throwable ex) {
+					LOG.log(Level.SEVERE, "Shuffle failed", ex);
+					exitCode = EXIT_FAILURE;
+				} finally {
+					close(project);
+				}
+				System.exit(exitCode);
+			}
+		});
+	}
+
+	private boolean parse(String[] args) {
+		// first argument is the command name
+		for (int i = 1; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.startsWith("--scope=")) {
+				scopeName = arg.substring("--scope=".length());
+			} else if ("--public".equals(arg)) {
+				settings.setRenamePublic(true);
+			} else if ("--no-protected".equals(arg)) {
+				settings.setRenameProtected(false);
+			} else if ("--no-package".equals(arg)) {
+				settings.setRenamePackage(false);
+			} else if ("--no-private".equals(arg)) {
+				settings.setRenamePrivate(false);
+			} else if ("--no-default".equals(arg)) {
+				settings.setRenameDefault(false);
+			} else if ("--libraries".equals(arg)) {
+				settings.setIncludeLibraries(true);
+			} else if ("--incremental".equals(arg)) {
+				settings.setIncrementalShuffle(true);
+			} else if ("--bulk".equals(arg)) {
+				settings.setBulkMode(true);
+			} else if ("--comments-only".equals(arg)) {
+				commentsOnly = true;
+			} else if (arg.startsWith("--corpus=")) {
+				settings.getCorpusFiles().add(new File(arg.substring("--corpus=".length())));
+			} else if (arg.startsWith("--corpus-weight=")) {
+				try {
+					settings.setCorpusWeight(Double.parseDouble(arg.substring("--corpus-weight=".length())));
+				} catch (NumberFormatException ex) {
+					System.err.println("Bad corpus weight " + arg);
+					return false;
+				}
+			} else if (!arg.startsWith("--") && projectPath == null) {
+				projectPath = new File(arg).getAbsolutePath();
+			} else {
+				System.err.println("Unknown argument " + arg);
+				System.err.println(USAGE);
+				return false;
+			}
+		}
+		if (projectPath == null) {
+			System.err.println(USAGE);
+			return false;
+		}
+		return true;
+	}
+
+	private int shuffle(Project project) {
+		DumbService.getInstance(project).waitForSmartMode();
+
+		GlobalSearchScope scope = scope(project);
+		if (scope == null) {
+			System.err.println("Unknown scope " + scopeName);
+			return EXIT_USAGE;
+		}
+
+		if (commentsOnly) {
+			Collection<VirtualFile> files = FileTypeIndex.getFiles(JavaFileType.INSTANCE, scope);
+			int decommented = new LexerDecommenter(project).decomment(files, null);
+			saveAllDocuments();
+			System.out.println("{\"files\":" + files.size() + ",\"decommented\":" + decommented + "}");
+			return EXIT_OK;
+		}
+
+		ShuffleRunner runner = new ShuffleRunner(new EmptyProgressIndicator(), project, scope, settings);
+		runner.run();
+		saveAllDocuments();
+
+		System.out.println(runner.getSummary());
+		return runner.getFilesFailed() > 0 ? EXIT_FILES_FAILED : EXIT_OK;
+	}
+
+	// project is closed without asking, documents left unsaved would be lost
+	private static void saveAllDocuments() {
+		ShuffleAction.runInUI(new Runnable() {
+			@Override
+			public void run() {
+				FileDocumentManager.getInstance().saveAllDocuments();
+			}
+		});
+	}
+
+	private static void close(final Project project) {
+		ApplicationManager.getApplication().invokeAndWait(new Runnable() {
+			@Override
+			public void run() {
+				ProjectUtil.closeAndDispose(project);
+			}
+		}, ModalityState.defaultModalityState());
+	}
+
+	private GlobalSearchScope scope(Project project) {
+		if ("production".equals(scopeName)) {
+			return GlobalSearchScopes.projectProductionScope(project);
+		}
+		if ("project".equals(scopeName)) {
+			return GlobalSearchScope.projectScope(project);
+		}
+		if (scopeName.startsWith("module:")) {
+			Module module = ModuleManager.getInstance(project).findModuleByName(scopeName.substring("module:".length()));
+			return module != null ? module.getModuleScope() : null;
+		}
+		if (scopeName.startsWith("dir:")) {
+			String path = new File(scopeName.substring("dir:".length())).getAbsolutePath();
+			VirtualFile directory = LocalFileSystem.getInstance().refreshAndFindFileByPath(path);
+			return directory != null && directory.isDirectory()
+				   ? GlobalSearchScopes.directoryScope(project, directory, true)
+				   : null;
+		}
+		return null;
+	}
+}
@@ -31,6 +31,11 @@ public class UIRunnable implements Runnable {
 
 	@Override
 	public void run() {
+		// already on EDT, invokeAndWait would only add a handoff
+		if (ApplicationManager.getApplication().isDispatchThread()) {
+			runInUI();
+			return;
+		}
 		ApplicationManager.getApplication().invokeAndWait(new Runnable() {
 			@Override
 			public void run() {
@@ -0,0 +1,92 @@
+/*
+ 	Shuffler is a plugin for IntelliJ Idea Community Edition,
+ 	that performs non-destructive java source code obfuscation.
+    Copyright (C) 2015 LLC "Open Code" http://www.o-code.ru
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package su.opencode.shuffler;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.command.undo.UndoConstants;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.event.DocumentAdapter;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/*
+ * Bulk mode: documents of project files stop recording undo while shuffle runs,
+ * so undo stack doesn't keep text of every renamed file.
+ * Documents are marked right before their first change, flags are restored on dispose.
+ *
+ * Shuffle can't be undone then, way back is VCS, local history label or the rename mapping.
+ */
+public class UndoSuppressor extends DocumentAdapter implements Disposable {
+
+	private final ProjectFileIndex fileIndex;
+	// documents may be collected once saved, they are created again without the flag
+	private final Set<Document> marked = Collections.newSetFromMap(new WeakHashMap<Document, Boolean>());
+
+	private UndoSuppressor(Project project) {
+		this.fileIndex = ProjectRootManager.getInstance(project).getFileIndex();
+	}
+
+	public static UndoSuppressor install(Project project) {
+		UndoSuppressor suppressor = new UndoSuppressor(project);
+		EditorFactory.getInstance().getEventMulticaster().addDocumentListener(suppressor, suppressor);
+		return suppressor;
+	}
+
+	@Override
+	public void beforeDocumentChange(DocumentEvent event) {
+		Document document = event.getDocument();
+		if (document.getUserData(UndoConstants.DONT_RECORD_UNDO) != null) return;
+
+		VirtualFile file = FileDocumentManager.getInstance().getFile(document);
+		if (file == null || !fileIndex.isInContent(file)) return;
+
+		document.putUserData(UndoConstants.DONT_RECORD_UNDO, Boolean.TRUE);
+		synchronized (marked) {
+			marked.add(document);
+		}
+	}
+
+	public void uninstall() {
+		Disposer.dispose(this);
+	}
+
+	@Override
+	public void dispose() {
+		List<Document> documents;
+		synchronized (marked) {
+			documents = new ArrayList<Document>(marked);
+			marked.clear();
+		}
+		for (Document document : documents) {
+			document.putUserData(UndoConstants.DONT_RECORD_UNDO, null);
+		}
+	}
+}